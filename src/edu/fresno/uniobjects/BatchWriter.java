@@ -0,0 +1,566 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.fresno.uniobjects.data.Field;
+import edu.fresno.uniobjects.data.FieldSet;
+import edu.fresno.uniobjects.data.WriteFailure;
+import edu.fresno.uniobjects.exceptions.NotConnectedException;
+
+import asjava.uniclientlibs.UniDataSet;
+import asjava.uniclientlibs.UniException;
+import asjava.uniclientlibs.UniRecord;
+import asjava.uniobjects.UniFile;
+import asjava.uniobjects.UniObjectsTokens;
+import asjava.uniobjects.UniSession;
+import asjava.uniobjects.UniTransaction;
+
+/**
+ * BatchWriter writes the named fields of many records to a single file.
+ * Rather than writing one record at a time, records are grouped into
+ * batches and each field is written for a whole batch in a single call,
+ * optionally spreading the batches over the sessions of a
+ * {@link SessionPool}. A record that fails is reported as a
+ * {@link WriteFailure} and does not stop the rest of the batch from
+ * being written, unless the batch is transactional.
+ */
+public class BatchWriter
+{
+	/**
+	 * The number of records written per batch when no other size has been set.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	protected UniDataConnection connection;
+	protected String file;
+	protected Map<String,FieldSet> records = new LinkedHashMap<String,FieldSet>();
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+	protected SessionPool sessionPool;
+	protected boolean lockRecords;
+	protected boolean transactional;
+	protected int writtenCount;
+
+	/**
+	 * Creates a BatchWriter for a file. See also
+	 * {@link UniDataConnection#getBatchWriter(String)}.
+	 * @param connection The connection whose session is used when no
+	 * {@link SessionPool} is set
+	 * @param file The file to write to
+	 */
+	public BatchWriter(UniDataConnection connection, String file)
+	{
+		this.connection = connection;
+		this.file = file;
+	}
+
+	/**
+	 * Adds a record to be written. Each {@link Field} in the set is written
+	 * to the record's named field, using the field's data as the value;
+	 * multivalued data should be separated with
+	 * {@link UniDataConnection#VALUE_MARK}. Adding the same record ID twice
+	 * replaces the earlier fields.
+	 * @param recordId The ID of the record to write
+	 * @param fields The fields and data to write
+	 * @throws IllegalArgumentException If <code>fields</code> is null
+	 */
+	public void add(String recordId, FieldSet fields)
+	{
+		if(fields == null)
+			throw new IllegalArgumentException("No fields given for record " + recordId);
+
+		this.records.put(recordId, fields);
+	}
+
+	/**
+	 * Adds several records to be written.
+	 * @param records Map of record IDs to the fields to write
+	 * @throws IllegalArgumentException If any record has null fields
+	 * @see #add(String, FieldSet)
+	 */
+	public void addAll(Map<String,FieldSet> records)
+	{
+		Iterator<Map.Entry<String,FieldSet>> it = records.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String,FieldSet> entry = it.next();
+			add(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Writes every record that has been added. Failures are collected rather
+	 * than thrown, so that one bad record does not abort the others. Fields
+	 * are written one at a time across the batch, and once one of a record's
+	 * fields fails its later fields are skipped. Without a transaction, the
+	 * fields written before the failure stay written; the failure's message
+	 * lists them. If the writer is transactional, any failure in a batch
+	 * rolls back that whole batch, and every record in it is reported as
+	 * failed; other batches are unaffected.
+	 * @return A List of {@link WriteFailure}s, empty if every record was written
+	 * @throws NotConnectedException If no {@link SessionPool} is set and the
+	 * UniData connection is not active
+	 * @throws InterruptedException If interrupted while waiting on the session pool
+	 */
+	public List<WriteFailure> execute() throws NotConnectedException, InterruptedException
+	{
+		List<WriteFailure> failures = Collections.synchronizedList(new ArrayList<WriteFailure>());
+		List<List<String>> batches = getBatches();
+
+		if(this.sessionPool == null)
+		{
+			if(!this.connection.isActive())
+				throw new NotConnectedException();
+
+			Iterator<List<String>> it = batches.iterator();
+			while(it.hasNext())
+				writeBatch(this.connection.getSession(), it.next(), failures);
+		}
+		else
+		{
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			Iterator<List<String>> it = batches.iterator();
+			while(it.hasNext())
+				tasks.add(new BatchTask(it.next(), failures));
+
+			ExecutorService executor = Executors.newFixedThreadPool(this.sessionPool.getMaxSessions());
+			try
+			{
+				// Futures come back in the same order as the batches
+				List<Future<Object>> results = executor.invokeAll(tasks);
+				for(int i = 0; i < results.size(); i++)
+				{
+					try
+					{
+						results.get(i).get();
+					}
+					catch(ExecutionException e)
+					{
+						Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+						Iterator<String> idIter = batches.get(i).iterator();
+						while(idIter.hasNext())
+							failures.add(new WriteFailure(idIter.next(), null, String.valueOf(e.getCause()), cause));
+					}
+				}
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+		}
+
+		Set<String> failedIds = new HashSet<String>();
+		synchronized(failures)
+		{
+			Iterator<WriteFailure> it = failures.iterator();
+			while(it.hasNext())
+				failedIds.add(it.next().getRecordId());
+		}
+		this.writtenCount = this.records.size() - failedIds.size();
+
+		return failures;
+	}
+
+	/**
+	 * Splits the added record IDs into batches of at most
+	 * {@link #getBatchSize()} IDs.
+	 * @return A List of batches of record IDs
+	 */
+	protected List<List<String>> getBatches()
+	{
+		List<String> ids = new ArrayList<String>(this.records.keySet());
+		List<List<String>> batches = new ArrayList<List<String>>();
+		int size = Math.max(1, this.batchSize);
+		for(int i = 0; i < ids.size(); i += size)
+			batches.add(ids.subList(i, Math.min(i + size, ids.size())));
+
+		return batches;
+	}
+
+	/**
+	 * Writes one batch of records on a session, adding any failures to
+	 * <code>failures</code>.
+	 * @param session The session to write with
+	 * @param ids The IDs of the records in the batch
+	 * @param failures The List to add failures to
+	 */
+	protected void writeBatch(UniSession session, List<String> ids, List<WriteFailure> failures)
+	{
+		List<WriteFailure> batchFailures = new ArrayList<WriteFailure>();
+		Set<String> failedIds = new HashSet<String>();
+		UniFile uniFile = null;
+		UniTransaction transaction = null;
+		UniDataSet lockSet = null;
+
+		try
+		{
+			uniFile = session.open(this.file);
+			if(this.transactional)
+			{
+				transaction = session.transaction();
+				transaction.begin();
+			}
+
+			if(this.lockRecords)
+			{
+				lockSet = new UniDataSet();
+				Iterator<String> it = ids.iterator();
+				while(it.hasNext())
+					lockSet.append(it.next());
+
+				UniDataSet locked = uniFile.lockRecord(lockSet, UniObjectsTokens.UVT_EXCLUSIVE_READ);
+				it = ids.iterator();
+				while(it.hasNext())
+				{
+					String id = it.next();
+					UniRecord record = locked.getUniRecord(id);
+					if(record == null || record.returnCode() != 0)
+					{
+						batchFailures.add(new WriteFailure(id, null, "Could not lock record", null));
+						failedIds.add(id);
+					}
+				}
+			}
+
+			// Group the data by field, so each field is written for the
+			// whole batch at once
+			Map<String,Map<String,String>> fieldValues = new LinkedHashMap<String,Map<String,String>>();
+			Iterator<String> idIter = ids.iterator();
+			while(idIter.hasNext())
+			{
+				String id = idIter.next();
+				if(failedIds.contains(id))
+					continue;
+
+				Iterator<Field> fieldIter = this.records.get(id).asList().iterator();
+				while(fieldIter.hasNext())
+				{
+					Field field = fieldIter.next();
+					String fieldName = field.getFieldName();
+					if(!fieldValues.containsKey(fieldName))
+						fieldValues.put(fieldName, new LinkedHashMap<String,String>());
+					fieldValues.get(fieldName).put(id, field.getData() == null ? "" : field.getData());
+				}
+			}
+
+			// The fields already written to each record, so a failure part
+			// way through a record can say what was applied
+			Map<String,List<String>> writtenFields = new LinkedHashMap<String,List<String>>();
+			Iterator<Map.Entry<String,Map<String,String>>> dataIter = fieldValues.entrySet().iterator();
+			while(dataIter.hasNext())
+			{
+				Map.Entry<String,Map<String,String>> entry = dataIter.next();
+				String fieldName = entry.getKey();
+
+				// Records that have already failed are not written any further
+				UniDataSet data = new UniDataSet();
+				List<String> writtenIds = new ArrayList<String>();
+				Iterator<Map.Entry<String,String>> valueIter = entry.getValue().entrySet().iterator();
+				while(valueIter.hasNext())
+				{
+					Map.Entry<String,String> value = valueIter.next();
+					if(failedIds.contains(value.getKey()))
+						continue;
+					data.append(value.getKey(), value.getValue());
+					writtenIds.add(value.getKey());
+				}
+				if(writtenIds.isEmpty())
+					continue;
+
+				try
+				{
+					UniDataSet result = uniFile.writeNamedField(data, fieldName);
+					Iterator<String> it = writtenIds.iterator();
+					while(it.hasNext())
+					{
+						String id = it.next();
+						UniRecord record = result == null ? null : result.getUniRecord(id);
+						if(record != null && record.returnCode() != 0)
+						{
+							batchFailures.add(new WriteFailure(id, fieldName,
+								"Write failed with code " + record.returnCode() + describeWritten(writtenFields, id, transaction), null));
+							failedIds.add(id);
+						}
+						else
+						{
+							if(!writtenFields.containsKey(id))
+								writtenFields.put(id, new ArrayList<String>());
+							writtenFields.get(id).add(fieldName);
+						}
+					}
+				}
+				catch(UniException e)
+				{
+					Iterator<String> it = writtenIds.iterator();
+					while(it.hasNext())
+					{
+						String id = it.next();
+						batchFailures.add(new WriteFailure(id, fieldName, e.getMessage() + describeWritten(writtenFields, id, transaction), e));
+						failedIds.add(id);
+					}
+				}
+			}
+
+			if(transaction != null)
+			{
+				if(batchFailures.isEmpty())
+					transaction.commit();
+				else
+					rollback(transaction, ids, failedIds, batchFailures);
+			}
+		}
+		catch(Exception e)
+		{
+			// Anything unexpected fails the batch too, rather than escaping
+			// with the transaction open and the failures so far lost
+			if(transaction != null)
+				rollback(transaction, ids, failedIds, batchFailures);
+
+			Iterator<String> it = ids.iterator();
+			while(it.hasNext())
+			{
+				String id = it.next();
+				if(failedIds.add(id))
+					batchFailures.add(new WriteFailure(id, null, e.getMessage(), e));
+			}
+		}
+		finally
+		{
+			try
+			{
+				if(lockSet != null)
+					uniFile.unlockRecord(lockSet);
+				if(uniFile != null)
+					uniFile.close();
+			}
+			catch(UniException e)
+			{
+				// The writes have already succeeded or failed; the locks are
+				// released when the session closes
+			}
+		}
+
+		failures.addAll(batchFailures);
+	}
+
+	/**
+	 * Describes the fields already written to a record that then failed, for
+	 * the failure's message. A transactional batch is rolled back, so nothing
+	 * is described for it.
+	 * @param writtenFields The fields written so far, by record ID
+	 * @param id The ID of the record that failed
+	 * @param transaction The batch's transaction, or null if there is none
+	 * @return The description to append, or an empty String
+	 */
+	protected String describeWritten(Map<String,List<String>> writtenFields, String id, UniTransaction transaction)
+	{
+		List<String> written = writtenFields.get(id);
+		if(transaction != null || written == null)
+			return "";
+
+		StringBuilder description = new StringBuilder("; already written: ");
+		Iterator<String> it = written.iterator();
+		while(it.hasNext())
+		{
+			description.append(it.next());
+			if(it.hasNext())
+				description.append(", ");
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Rolls back a batch's transaction and reports every record in the batch
+	 * that has not already failed as failed.
+	 * @param transaction The transaction to roll back
+	 * @param ids The IDs of the records in the batch
+	 * @param failedIds The IDs already reported as failed
+	 * @param batchFailures The List to add failures to
+	 */
+	protected void rollback(UniTransaction transaction, List<String> ids, Set<String> failedIds, List<WriteFailure> batchFailures)
+	{
+		String message = "Rolled back because another record in the batch failed";
+		try
+		{
+			transaction.rollback();
+		}
+		catch(UniException e)
+		{
+			message = "Rollback failed: " + e.getMessage();
+		}
+
+		Iterator<String> it = ids.iterator();
+		while(it.hasNext())
+		{
+			String id = it.next();
+			if(failedIds.add(id))
+				batchFailures.add(new WriteFailure(id, null, message, null));
+		}
+	}
+
+	/**
+	 * Writes a single batch on a session borrowed from the {@link SessionPool}.
+	 */
+	protected class BatchTask implements Callable<Object>
+	{
+		protected List<String> ids;
+		protected List<WriteFailure> failures;
+
+		/**
+		 * Creates the task.
+		 * @param ids The IDs of the records in the batch
+		 * @param failures The List to add failures to
+		 */
+		public BatchTask(List<String> ids, List<WriteFailure> failures)
+		{
+			this.ids = ids;
+			this.failures = failures;
+		}
+
+		/**
+		 * Borrows a session, writes the batch and releases the session.
+		 * @return Nothing
+		 * @throws InterruptedException If interrupted while waiting for a session
+		 */
+		public Object call() throws InterruptedException
+		{
+			UniSession session = null;
+			try
+			{
+				session = sessionPool.borrow();
+				writeBatch(session, ids, failures);
+			}
+			catch(UniException e)
+			{
+				Iterator<String> it = ids.iterator();
+				while(it.hasNext())
+					failures.add(new WriteFailure(it.next(), null, e.getMessage(), e));
+			}
+			finally
+			{
+				if(session != null)
+					sessionPool.release(session);
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the number of records written successfully by the last
+	 * call to {@link #execute()}.
+	 * @return The number of records written
+	 */
+	public int getWrittenCount()
+	{
+		return writtenCount;
+	}
+
+	/**
+	 * Gets the file being written to.
+	 * @return The file name
+	 */
+	public String getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Gets the records that have been added.
+	 * @return Map of record IDs to the fields to write
+	 */
+	public Map<String,FieldSet> getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * Gets the number of records written per batch.
+	 * @return The batch size
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of records written per batch.
+	 * @param batchSize The batch size
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Gets the pool used to spread batches over several sessions.
+	 * @return The session pool, or null if the connection's session is used
+	 */
+	public SessionPool getSessionPool()
+	{
+		return sessionPool;
+	}
+
+	/**
+	 * Sets the pool used to spread batches over several sessions. Batches
+	 * are written concurrently, one per session.
+	 * @param sessionPool The session pool, or null to use the connection's session
+	 */
+	public void setSessionPool(SessionPool sessionPool)
+	{
+		this.sessionPool = sessionPool;
+	}
+
+	/**
+	 * Determines whether records are locked before they are written.
+	 * @return True if records are locked, false otherwise
+	 */
+	public boolean isLockRecords()
+	{
+		return lockRecords;
+	}
+
+	/**
+	 * Sets whether records are locked (<code>READU</code>) before they are
+	 * written. Records that are already locked by another user are reported
+	 * as failed rather than waited on.
+	 * @param lockRecords True to lock records, false otherwise
+	 */
+	public void setLockRecords(boolean lockRecords)
+	{
+		this.lockRecords = lockRecords;
+	}
+
+	/**
+	 * Determines whether each batch is written in its own transaction.
+	 * @return True if batches are transactional, false otherwise
+	 */
+	public boolean isTransactional()
+	{
+		return transactional;
+	}
+
+	/**
+	 * Sets whether each batch is written in its own transaction, so that
+	 * a batch is either written completely or not at all.
+	 * @param transactional True to make batches transactional, false otherwise
+	 */
+	public void setTransactional(boolean transactional)
+	{
+		this.transactional = transactional;
+	}
+}
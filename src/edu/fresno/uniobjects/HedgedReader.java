@@ -0,0 +1,418 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import edu.fresno.uniobjects.data.FieldDefinition;
+import edu.fresno.uniobjects.data.FieldSet;
+import edu.fresno.uniobjects.exceptions.QueryTimeoutException;
+
+import asjava.uniclientlibs.UniConnectionException;
+import asjava.uniobjects.UniCommandException;
+import asjava.uniobjects.UniSession;
+import asjava.uniobjects.UniSessionException;
+
+/**
+ * HedgedReader runs read-only queries on the sessions of a {@link SessionPool}
+ * with a deadline, and hedges slow queries: if a query has not answered
+ * within a percentile of recent query times, the same query is issued on a
+ * second session, and whichever answers first is used. The other query is
+ * abandoned: it finishes on its own, and its session goes back to the pool
+ * when it does. Hedges are limited by a budget (a fraction of all queries)
+ * so that they cannot multiply the load on a server that is already slow.
+ * Only use a HedgedReader for queries that are safe to run twice.
+ */
+public class HedgedReader
+{
+	/**
+	 * The percentile of recent query times after which a query is hedged,
+	 * when no other percentile has been set.
+	 */
+	public static final double DEFAULT_HEDGE_PERCENTILE = 95.0;
+	/**
+	 * The fraction of queries that may be hedged, when no other budget
+	 * has been set.
+	 */
+	public static final double DEFAULT_HEDGE_BUDGET = 0.05;
+	/**
+	 * The delay, in milliseconds, before a query is hedged while there are
+	 * too few recent query times to calculate a percentile.
+	 */
+	public static final long DEFAULT_HEDGE_DELAY = 100;
+	/**
+	 * The number of recent query times kept for calculating the percentile.
+	 */
+	public static final int LATENCY_SAMPLES = 1000;
+	/**
+	 * The number of query times needed before the percentile is used.
+	 */
+	public static final int MIN_LATENCY_SAMPLES = 20;
+	/**
+	 * The most unused hedges that can be saved up for a burst of slow queries.
+	 */
+	public static final double MAX_HEDGE_TOKENS = 10;
+	/**
+	 * The number of new query times after which the hedge delay is
+	 * recalculated, rather than sorting the samples for every query.
+	 */
+	public static final int RECALCULATE_INTERVAL = 50;
+
+	protected SessionPool sessionPool;
+	protected double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+	protected double hedgeBudget = DEFAULT_HEDGE_BUDGET;
+	protected long defaultHedgeDelay = DEFAULT_HEDGE_DELAY;
+	protected boolean hedging = true;
+	protected long[] latencies = new long[LATENCY_SAMPLES];
+	protected int latencyCount;
+	protected int samplesSinceCalculated;
+	protected long hedgeDelayMillis = -1;
+	protected int nextLatency;
+	protected double hedgeTokens;
+	protected long queryCount;
+	protected long hedgeCount;
+
+	/**
+	 * Creates a HedgedReader using the sessions of a pool. The pool should
+	 * allow at least two sessions per concurrent caller; a hedge is skipped
+	 * if no session is free for it.
+	 * @param sessionPool The pool to run queries on
+	 */
+	public HedgedReader(SessionPool sessionPool)
+	{
+		this.sessionPool = sessionPool;
+	}
+
+	/**
+	 * Executes a read-only query, hedging it if it is slow.
+	 * @param query The query to run
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return The response from the UniData data source
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If no answer arrived before the deadline
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 */
+	public String query(String query, long timeoutMillis) throws UniConnectionException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		return this.exec(query, timeoutMillis).trim();
+	}
+
+	/**
+	 * Executes a special LIST query to retrieve certain fields, hedging it
+	 * if it is slow.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return A list of {@link FieldSet}s
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If no answer arrived before the deadline
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 * @see UniDataConnection#getFields(FieldDefinition)
+	 */
+	public List<FieldSet> getFields(FieldDefinition fieldDefinition, long timeoutMillis) throws UniConnectionException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		String response = this.exec(fieldDefinition.getQueryString(), timeoutMillis);
+		return this.sessionPool.getConnection().parseResponse(response, fieldDefinition);
+	}
+
+	/**
+	 * Executes a query, hedging it if it is slow, and returns the response
+	 * exactly as it was received.
+	 * @param query The query to run
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return The untrimmed response from the UniData data source
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If no session was free or no answer
+	 * arrived before the deadline
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 */
+	protected String exec(String query, long timeoutMillis) throws UniConnectionException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long hedgeAt = start + TimeUnit.MILLISECONDS.toNanos(getHedgeDelay());
+		addHedgeToken();
+
+		CompletionService<String> completion = new ExecutorCompletionService<String>(QueryTask.EXECUTOR);
+		List<QueryTask> tasks = new ArrayList<QueryTask>();
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		ExecutionException failure = null;
+
+		try
+		{
+			if(!submit(query, completion, tasks, futures, deadline - System.nanoTime()))
+				throw new QueryTimeoutException("No session was free within " + timeoutMillis + "ms");
+			int outstanding = 1;
+			boolean canHedge = this.hedging;
+
+			while(outstanding > 0)
+			{
+				long now = System.nanoTime();
+				if(now >= deadline)
+				{
+					// The query took at least this long; recording the
+					// miss keeps slow periods from dragging the delay down
+					recordLatency(now - start);
+					throw new QueryTimeoutException("Query did not complete within " + timeoutMillis + "ms");
+				}
+
+				boolean waitForHedge = canHedge && hedgeAt < deadline;
+				long waitUntil = waitForHedge ? hedgeAt : deadline;
+				Future<String> done = completion.poll(Math.max(0, waitUntil - now), TimeUnit.NANOSECONDS);
+				if(done == null)
+				{
+					if(waitForHedge && System.nanoTime() >= hedgeAt)
+					{
+						canHedge = false;
+						if(takeHedgeToken())
+						{
+							// Only hedge on a session that is free right now
+							if(submit(query, completion, tasks, futures, 0))
+								outstanding++;
+							else
+								returnHedgeToken();
+						}
+					}
+					continue;
+				}
+
+				outstanding--;
+				try
+				{
+					String response = done.get();
+					// Timed from the original request, whichever query answered
+					recordLatency(System.nanoTime() - start);
+					return response;
+				}
+				catch(ExecutionException e)
+				{
+					failure = e;
+				}
+			}
+
+			QueryTask.rethrow(failure);
+			return null;
+		}
+		finally
+		{
+			// Abandon whichever queries are still running; they release
+			// their sessions to the pool when they finish
+			for(int i = 0; i < futures.size(); i++)
+			{
+				if(!futures.get(i).isDone())
+					tasks.get(i).abandon(false);
+			}
+		}
+	}
+
+	/**
+	 * Borrows a session and submits a query on it.
+	 * @param query The query to run
+	 * @param completion The CompletionService to submit to
+	 * @param tasks The List to add the task to
+	 * @param futures The List to add the task's Future to
+	 * @param waitNanos How long to wait for a free session, in nanoseconds
+	 * @return True if the query was submitted, false if no session was free in time
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniSessionException If a new session cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a session
+	 */
+	protected boolean submit(String query, CompletionService<String> completion, List<QueryTask> tasks, List<Future<String>> futures, long waitNanos) throws UniConnectionException, UniSessionException, InterruptedException
+	{
+		UniSession session = this.sessionPool.borrow(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+		if(session == null)
+			return false;
+
+		QueryTask task = new QueryTask(session, query, this.sessionPool);
+		tasks.add(task);
+		futures.add(completion.submit(task));
+		return true;
+	}
+
+	/**
+	 * Records the time a query took, from the original request to the first
+	 * answer, or to the deadline for a query that missed it.
+	 * @param nanos The query time in nanoseconds
+	 */
+	protected synchronized void recordLatency(long nanos)
+	{
+		this.latencies[this.nextLatency] = nanos;
+		this.nextLatency = (this.nextLatency + 1) % this.latencies.length;
+		if(this.latencyCount < this.latencies.length)
+			this.latencyCount++;
+		this.samplesSinceCalculated++;
+	}
+
+	/**
+	 * Adds a query's share of the hedge budget.
+	 */
+	protected synchronized void addHedgeToken()
+	{
+		this.queryCount++;
+		this.hedgeTokens = Math.min(MAX_HEDGE_TOKENS, this.hedgeTokens + this.hedgeBudget);
+	}
+
+	/**
+	 * Spends one hedge from the budget, if there is one to spend.
+	 * @return True if a hedge may be issued, false otherwise
+	 */
+	protected synchronized boolean takeHedgeToken()
+	{
+		if(this.hedgeTokens < 1)
+			return false;
+
+		this.hedgeTokens--;
+		this.hedgeCount++;
+		return true;
+	}
+
+	/**
+	 * Gives back a hedge taken with {@link #takeHedgeToken()} that could not
+	 * be issued.
+	 */
+	protected synchronized void returnHedgeToken()
+	{
+		this.hedgeTokens++;
+		this.hedgeCount--;
+	}
+
+	/**
+	 * Calculates how long a query may run before it is hedged: the hedge
+	 * percentile of recent query times, or the default hedge delay if there
+	 * are too few recent queries. The percentile is recalculated every
+	 * {@link #RECALCULATE_INTERVAL} queries.
+	 * @return The hedge delay in milliseconds
+	 */
+	public synchronized long getHedgeDelay()
+	{
+		if(this.latencyCount < MIN_LATENCY_SAMPLES)
+			return this.defaultHedgeDelay;
+
+		if(this.hedgeDelayMillis >= 0 && this.samplesSinceCalculated < RECALCULATE_INTERVAL)
+			return this.hedgeDelayMillis;
+
+		long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(this.hedgePercentile / 100.0 * sorted.length) - 1;
+		index = Math.max(0, Math.min(sorted.length - 1, index));
+
+		this.hedgeDelayMillis = TimeUnit.NANOSECONDS.toMillis(sorted[index]);
+		this.samplesSinceCalculated = 0;
+		return this.hedgeDelayMillis;
+	}
+
+	/**
+	 * Gets the pool queries are run on.
+	 * @return The session pool
+	 */
+	public SessionPool getSessionPool()
+	{
+		return sessionPool;
+	}
+
+	/**
+	 * Gets the percentile of recent query times after which a query is hedged.
+	 * @return The hedge percentile, between 0 and 100
+	 */
+	public synchronized double getHedgePercentile()
+	{
+		return hedgePercentile;
+	}
+
+	/**
+	 * Sets the percentile of recent query times after which a query is hedged.
+	 * @param hedgePercentile The hedge percentile, between 0 and 100
+	 */
+	public synchronized void setHedgePercentile(double hedgePercentile)
+	{
+		this.hedgePercentile = hedgePercentile;
+		this.hedgeDelayMillis = -1;
+	}
+
+	/**
+	 * Gets the fraction of queries that may be hedged.
+	 * @return The hedge budget, between 0 and 1
+	 */
+	public synchronized double getHedgeBudget()
+	{
+		return hedgeBudget;
+	}
+
+	/**
+	 * Sets the fraction of queries that may be hedged, eg 0.05 to allow one
+	 * hedge for every twenty queries.
+	 * @param hedgeBudget The hedge budget, between 0 and 1
+	 */
+	public synchronized void setHedgeBudget(double hedgeBudget)
+	{
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	/**
+	 * Gets the delay before hedging while there are too few recent query times.
+	 * @return The default hedge delay in milliseconds
+	 */
+	public synchronized long getDefaultHedgeDelay()
+	{
+		return defaultHedgeDelay;
+	}
+
+	/**
+	 * Sets the delay before hedging while there are too few recent query times.
+	 * @param defaultHedgeDelay The default hedge delay in milliseconds
+	 */
+	public synchronized void setDefaultHedgeDelay(long defaultHedgeDelay)
+	{
+		this.defaultHedgeDelay = defaultHedgeDelay;
+	}
+
+	/**
+	 * Determines whether slow queries are hedged.
+	 * @return True if hedging is enabled, false otherwise
+	 */
+	public boolean isHedging()
+	{
+		return hedging;
+	}
+
+	/**
+	 * Sets whether slow queries are hedged. With hedging disabled, queries
+	 * still run with a deadline.
+	 * @param hedging True to enable hedging, false to disable
+	 */
+	public void setHedging(boolean hedging)
+	{
+		this.hedging = hedging;
+	}
+
+	/**
+	 * Gets the number of queries run.
+	 * @return The number of queries
+	 */
+	public synchronized long getQueryCount()
+	{
+		return queryCount;
+	}
+
+	/**
+	 * Gets the number of queries that were hedged.
+	 * @return The number of hedges issued
+	 */
+	public synchronized long getHedgeCount()
+	{
+		return hedgeCount;
+	}
+}
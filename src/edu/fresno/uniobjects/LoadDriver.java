@@ -0,0 +1,829 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.fresno.uniobjects.data.FieldDefinition;
+import edu.fresno.uniobjects.exceptions.QueryTimeoutException;
+
+/**
+ * LoadDriver is a command-line tool that replays a workload of LIST and
+ * SELECT statements against a UniData data source at a given concurrency
+ * and rate, and reports throughput, latency percentiles, error rates and
+ * the time split between round trips and parsing. Run it without arguments
+ * for usage.
+ * <p>
+ * A workload file has one statement per line; blank lines and lines
+ * starting with <code>#</code> are ignored. A line of the form
+ * <code>GETFIELDS FILE FIELD.ONE,FIELD.TWO</code> is run through
+ * {@link UniDataConnection#getFields(FieldDefinition)}, so its parse time
+ * is measured; any other line is run as-is with
+ * {@link UniDataConnection#query(String)}. Statements are replayed in order,
+ * or in random order with <code>--shuffle</code>; repeat a line to give it
+ * more weight in the mix.
+ * </p>
+ */
+public class LoadDriver
+{
+	/**
+	 * The prefix of workload lines that are run through getFields.
+	 */
+	public static final String GETFIELDS = "GETFIELDS";
+
+	protected String host;
+	protected String account;
+	protected String username;
+	protected String password;
+	protected List<String> workload = new ArrayList<String>();
+	protected int concurrency = 1;
+	protected double rate;
+	protected long durationMillis = 10000;
+	protected long maxRequests;
+	protected long timeoutMillis;
+	protected boolean shuffle;
+	protected boolean standIn;
+	protected int standInRows = 100;
+	protected long standInLatencyMillis = 5;
+	protected String jsonFile;
+
+	protected AtomicLong issued = new AtomicLong();
+	protected AtomicLong nextSendTime = new AtomicLong();
+	protected long intervalNanos;
+	protected long stopTime;
+
+	/**
+	 * Runs the load driver from the command line.
+	 * @param args The command-line arguments
+	 */
+	public static void main(String[] args)
+	{
+		LoadDriver driver = new LoadDriver();
+		try
+		{
+			driver.parseArguments(args);
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			printUsage(System.err);
+			System.exit(2);
+		}
+
+		try
+		{
+			Report report = driver.run();
+			report.printText(System.out);
+			if(driver.jsonFile != null)
+			{
+				Writer writer = new FileWriter(driver.jsonFile);
+				try
+				{
+					writer.write(report.toJson());
+				}
+				finally
+				{
+					writer.close();
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			System.err.println("Load run failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints the command-line usage.
+	 * @param out The stream to print to
+	 */
+	public static void printUsage(PrintStream out)
+	{
+		out.println("Usage: LoadDriver --workload FILE [options]");
+		out.println("  --host HOST            UniData host (not needed with --stand-in)");
+		out.println("  --account PATH         Account path");
+		out.println("  --user NAME            Username");
+		out.println("  --password-env VAR     Environment variable holding the password");
+		out.println("  --concurrency N        Concurrent sessions (default 1)");
+		out.println("  --rate R               Target requests per second across all sessions (default unlimited)");
+		out.println("  --duration SECONDS     How long to run (default 10)");
+		out.println("  --requests N           Stop after N requests instead");
+		out.println("  --timeout MS           Per-request deadline (default none); a request that");
+		out.println("                         misses it is abandoned and the worker reconnects");
+		out.println("  --shuffle              Pick statements at random instead of in order");
+		out.println("  --stand-in             Use a local stand-in instead of a real server");
+		out.println("  --stand-in-rows N      Rows returned by each stand-in LIST (default 100)");
+		out.println("  --stand-in-latency MS  Stand-in round-trip time (default 5)");
+		out.println("  --json FILE            Also write a machine-readable summary to FILE");
+	}
+
+	/**
+	 * Parses command-line arguments into the driver's settings.
+	 * @param args The command-line arguments
+	 * @throws IllegalArgumentException If the arguments are invalid
+	 */
+	public void parseArguments(String[] args)
+	{
+		String workloadFile = null;
+		for(int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if(arg.equals("--shuffle"))
+			{
+				this.shuffle = true;
+				continue;
+			}
+			if(arg.equals("--stand-in"))
+			{
+				this.standIn = true;
+				continue;
+			}
+			if(i + 1 >= args.length)
+				throw new IllegalArgumentException("Missing value for " + arg);
+
+			String value = args[++i];
+			try
+			{
+				if(arg.equals("--workload"))
+					workloadFile = value;
+				else if(arg.equals("--host"))
+					this.host = value;
+				else if(arg.equals("--account"))
+					this.account = value;
+				else if(arg.equals("--user"))
+					this.username = value;
+				else if(arg.equals("--password-env"))
+					this.password = System.getenv(value);
+				else if(arg.equals("--concurrency"))
+					this.concurrency = Integer.parseInt(value);
+				else if(arg.equals("--rate"))
+					this.rate = Double.parseDouble(value);
+				else if(arg.equals("--duration"))
+					this.durationMillis = (long) (Double.parseDouble(value) * 1000);
+				else if(arg.equals("--requests"))
+					this.maxRequests = Long.parseLong(value);
+				else if(arg.equals("--timeout"))
+					this.timeoutMillis = Long.parseLong(value);
+				else if(arg.equals("--stand-in-rows"))
+					this.standInRows = Integer.parseInt(value);
+				else if(arg.equals("--stand-in-latency"))
+					this.standInLatencyMillis = Long.parseLong(value);
+				else if(arg.equals("--json"))
+					this.jsonFile = value;
+				else
+					throw new IllegalArgumentException("Unknown option " + arg);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+			}
+		}
+
+		if(workloadFile == null)
+			throw new IllegalArgumentException("A workload file is required");
+		if(this.concurrency < 1)
+			throw new IllegalArgumentException("Concurrency must be at least 1");
+		if(!this.standIn && (this.host == null || this.account == null || this.username == null))
+			throw new IllegalArgumentException("--host, --account and --user are required without --stand-in");
+
+		try
+		{
+			this.workload = readWorkload(workloadFile);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException("Cannot read workload " + workloadFile + ": " + e.getMessage());
+		}
+		if(this.workload.isEmpty())
+			throw new IllegalArgumentException("The workload " + workloadFile + " has no statements");
+	}
+
+	/**
+	 * Reads the statements from a workload file.
+	 * @param fileName The workload file
+	 * @return The List of statements, in order
+	 * @throws IOException If the file cannot be read
+	 */
+	protected static List<String> readWorkload(String fileName) throws IOException
+	{
+		List<String> statements = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				statements.add(line);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return statements;
+	}
+
+	/**
+	 * Builds the FieldDefinition for a <code>GETFIELDS FILE FIELD,FIELD</code>
+	 * workload line.
+	 * @param statement The workload line
+	 * @return The FieldDefinition, or null if the line is a plain query
+	 */
+	protected static FieldDefinition parseGetFields(String statement)
+	{
+		String[] parts = statement.split("\\s+");
+		if(parts.length != 3 || !parts[0].equalsIgnoreCase(GETFIELDS))
+			return null;
+
+		FieldDefinition fd = new FieldDefinition(parts[1]);
+		fd.setFieldsByName(parts[2].split(","));
+		return fd;
+	}
+
+	/**
+	 * Connects the sessions, replays the workload until the duration or
+	 * request count is reached, and disconnects.
+	 * @return The {@link Report} of the run
+	 * @throws Exception If a session cannot be connected
+	 */
+	public Report run() throws Exception
+	{
+		List<UniDataConnection> connections = new ArrayList<UniDataConnection>();
+		List<Worker> workers = new ArrayList<Worker>();
+		try
+		{
+			for(int i = 0; i < this.concurrency; i++)
+			{
+				UniDataConnection connection = createConnection();
+				connection.connect();
+				connections.add(connection);
+				workers.add(new Worker(connection, i));
+			}
+
+			long start = System.nanoTime();
+			this.intervalNanos = this.rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / this.rate) : 0;
+			this.nextSendTime.set(start);
+			this.stopTime = start + TimeUnit.MILLISECONDS.toNanos(this.durationMillis);
+
+			List<Thread> threads = new ArrayList<Thread>();
+			Iterator<Worker> it = workers.iterator();
+			while(it.hasNext())
+			{
+				Thread thread = new Thread(it.next(), "judaw-load");
+				threads.add(thread);
+				thread.start();
+			}
+			Iterator<Thread> threadIter = threads.iterator();
+			while(threadIter.hasNext())
+				threadIter.next().join();
+
+			return new Report(workers, System.nanoTime() - start);
+		}
+		finally
+		{
+			Iterator<UniDataConnection> it = connections.iterator();
+			while(it.hasNext())
+			{
+				try
+				{
+					it.next().disconnect();
+				}
+				catch(Exception e)
+				{
+					// Nothing useful can be done about a failed disconnect here
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a connection for one worker.
+	 * @return A real connection, or a stand-in if <code>--stand-in</code> was given
+	 */
+	protected UniDataConnection createConnection()
+	{
+		if(this.standIn)
+			return new StandInConnection(this.standInRows, this.standInLatencyMillis);
+		else
+			return new UniDataConnection(this.username, this.password, this.host, this.account);
+	}
+
+	/**
+	 * Reserves the next request, waiting until it is due if a rate is set.
+	 * @return The time the request was scheduled for, in nanoseconds, or -1
+	 * if the run is over
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	protected long nextRequest() throws InterruptedException
+	{
+		if(this.maxRequests > 0)
+		{
+			if(this.issued.incrementAndGet() > this.maxRequests)
+				return -1;
+		}
+		else if(System.nanoTime() >= this.stopTime)
+		{
+			return -1;
+		}
+
+		if(this.intervalNanos == 0)
+			return System.nanoTime();
+
+		long scheduled = this.nextSendTime.getAndAdd(this.intervalNanos);
+		if(this.maxRequests == 0 && scheduled >= this.stopTime)
+			return -1;
+		long wait = scheduled - System.nanoTime();
+		if(wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+
+		return scheduled;
+	}
+
+	/**
+	 * Replays the workload on one connection and records its measurements.
+	 */
+	protected class Worker implements Runnable
+	{
+		protected UniDataConnection connection;
+		protected Random random;
+		protected int position;
+		protected LongList latencies = new LongList();
+		protected long roundTripNanos;
+		protected long roundTrips;
+		protected long parseNanos;
+		protected long parsed;
+		protected long reconnectFailures;
+		protected Map<String,Long> errors = new TreeMap<String,Long>();
+
+		/**
+		 * Creates a worker.
+		 * @param connection The connection to replay the workload on
+		 * @param index The worker's index, used to stagger its position in the workload
+		 */
+		public Worker(UniDataConnection connection, int index)
+		{
+			this.connection = connection;
+			this.random = new Random(index);
+			this.position = index % workload.size();
+		}
+
+		/**
+		 * Runs requests until the run is over.
+		 */
+		public void run()
+		{
+			List<FieldDefinition> definitions = new ArrayList<FieldDefinition>();
+			Iterator<String> it = workload.iterator();
+			while(it.hasNext())
+				definitions.add(parseGetFields(it.next()));
+
+			try
+			{
+				long scheduled;
+				while((scheduled = nextRequest()) >= 0)
+				{
+					int index = shuffle ? random.nextInt(workload.size()) : position++ % workload.size();
+					execute(workload.get(index), definitions.get(index));
+					// Latency is measured from when the request was due, so a
+					// backed-up server is not hidden by the rate limiting
+					latencies.add(System.nanoTime() - scheduled);
+
+					// A timed-out request leaves its session to finish on its
+					// own, so carry on with a fresh one
+					if(!connection.isActive())
+						reconnect();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Runs a single statement, recording its round-trip and parse times
+		 * or its error.
+		 * @param statement The workload statement
+		 * @param fieldDefinition The FieldDefinition for a GETFIELDS line, or null
+		 */
+		protected void execute(String statement, FieldDefinition fieldDefinition)
+		{
+			try
+			{
+				String query = fieldDefinition == null ? statement : fieldDefinition.getQueryString();
+				long start = System.nanoTime();
+				String response = timeoutMillis > 0
+					? connection.exec(query, timeoutMillis)
+					: connection.exec(query);
+				long received = System.nanoTime();
+				this.roundTripNanos += received - start;
+				this.roundTrips++;
+
+				if(fieldDefinition != null)
+				{
+					connection.parseResponse(response, fieldDefinition);
+					this.parseNanos += System.nanoTime() - received;
+					this.parsed++;
+				}
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch(Exception e)
+			{
+				recordError(e);
+			}
+		}
+
+		/**
+		 * Reconnects the worker's connection after a request was abandoned.
+		 * A failure is counted separately from request errors, and the next
+		 * request fails with NotConnectedException and tries again.
+		 */
+		protected void reconnect()
+		{
+			try
+			{
+				connection.connect();
+			}
+			catch(Exception e)
+			{
+				this.reconnectFailures++;
+			}
+		}
+
+		/**
+		 * Counts an error by its type.
+		 * @param e The error
+		 */
+		protected void recordError(Exception e)
+		{
+			String type = e.getClass().getSimpleName();
+			Long count = this.errors.get(type);
+			this.errors.put(type, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * The summary of a load run.
+	 */
+	public static class Report
+	{
+		protected long requests;
+		protected long errors;
+		protected long durationNanos;
+		protected long[] latencies;
+		protected long roundTripNanos;
+		protected long roundTrips;
+		protected long parseNanos;
+		protected long parsed;
+		protected long reconnectFailures;
+		protected Map<String,Long> errorsByType = new TreeMap<String,Long>();
+
+		/**
+		 * Combines the measurements of all workers.
+		 * @param workers The workers of the run
+		 * @param durationNanos How long the run took
+		 */
+		protected Report(List<Worker> workers, long durationNanos)
+		{
+			this.durationNanos = durationNanos;
+			LongList all = new LongList();
+			Iterator<Worker> it = workers.iterator();
+			while(it.hasNext())
+			{
+				Worker worker = it.next();
+				all.addAll(worker.latencies);
+				this.roundTripNanos += worker.roundTripNanos;
+				this.roundTrips += worker.roundTrips;
+				this.parseNanos += worker.parseNanos;
+				this.parsed += worker.parsed;
+				this.reconnectFailures += worker.reconnectFailures;
+
+				Iterator<Map.Entry<String,Long>> errorIter = worker.errors.entrySet().iterator();
+				while(errorIter.hasNext())
+				{
+					Map.Entry<String,Long> entry = errorIter.next();
+					Long count = this.errorsByType.get(entry.getKey());
+					this.errorsByType.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue());
+					this.errors += entry.getValue();
+				}
+			}
+			this.latencies = all.toSortedArray();
+			this.requests = this.latencies.length;
+		}
+
+		/**
+		 * Gets a latency percentile.
+		 * @param percentile The percentile, between 0 and 100
+		 * @return The latency in milliseconds, or 0 if there were no requests
+		 */
+		public double getLatencyPercentile(double percentile)
+		{
+			if(this.latencies.length == 0)
+				return 0;
+
+			int index = (int) Math.ceil(percentile / 100.0 * this.latencies.length) - 1;
+			index = Math.max(0, Math.min(this.latencies.length - 1, index));
+			return toMillis(this.latencies[index]);
+		}
+
+		/**
+		 * Gets the completed requests per second.
+		 * @return The throughput
+		 */
+		public double getThroughput()
+		{
+			return this.durationNanos == 0 ? 0 : this.requests / (this.durationNanos / 1e9);
+		}
+
+		/**
+		 * Gets the fraction of requests that failed.
+		 * @return The error rate, between 0 and 1
+		 */
+		public double getErrorRate()
+		{
+			return this.requests == 0 ? 0 : (double) this.errors / this.requests;
+		}
+
+		/**
+		 * Gets the number of times a worker failed to reconnect after a
+		 * request timed out. These are not counted as request errors.
+		 * @return The number of failed reconnects
+		 */
+		public long getReconnectFailures()
+		{
+			return reconnectFailures;
+		}
+
+		/**
+		 * Gets the mean round-trip time of the successful requests.
+		 * @return The mean round-trip time in milliseconds
+		 */
+		public double getMeanRoundTrip()
+		{
+			return this.roundTrips == 0 ? 0 : toMillis(this.roundTripNanos) / this.roundTrips;
+		}
+
+		/**
+		 * Gets the mean parse time of the GETFIELDS requests.
+		 * @return The mean parse time in milliseconds
+		 */
+		public double getMeanParse()
+		{
+			return this.parsed == 0 ? 0 : toMillis(this.parseNanos) / this.parsed;
+		}
+
+		/**
+		 * Prints the report as text.
+		 * @param out The stream to print to
+		 */
+		public void printText(PrintStream out)
+		{
+			out.println(format("Requests:    %d (%d errors, %.2f%%)", this.requests, this.errors, getErrorRate() * 100));
+			out.println(format("Duration:    %.2f s", this.durationNanos / 1e9));
+			out.println(format("Throughput:  %.1f req/s", getThroughput()));
+			out.println(format("Latency:     p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+				getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99),
+				getLatencyPercentile(99.9), getLatencyPercentile(100)));
+			out.println(format("Round trip:  %.2f ms mean", getMeanRoundTrip()));
+			out.println(format("Parse:       %.2f ms mean (%d parsed responses)", getMeanParse(), this.parsed));
+			if(this.reconnectFailures > 0)
+				out.println(format("Reconnects:  %d failed", this.reconnectFailures));
+
+			Iterator<Map.Entry<String,Long>> it = this.errorsByType.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<String,Long> entry = it.next();
+				out.println(format("Error:       %s x %d", entry.getKey(), entry.getValue()));
+			}
+		}
+
+		/**
+		 * Formats the report as a JSON object.
+		 * @return The JSON summary
+		 */
+		public String toJson()
+		{
+			StringBuilder json = new StringBuilder("{");
+			json.append(format("\"requests\":%d,\"errors\":%d,\"errorRate\":%.6f,", this.requests, this.errors, getErrorRate()));
+			json.append(format("\"durationSeconds\":%.3f,\"throughput\":%.3f,", this.durationNanos / 1e9, getThroughput()));
+			json.append(format("\"latencyMillis\":{\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f},",
+				getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99),
+				getLatencyPercentile(99.9), getLatencyPercentile(100)));
+			json.append(format("\"roundTripMillisMean\":%.3f,\"parseMillisMean\":%.3f,", getMeanRoundTrip(), getMeanParse()));
+			json.append(format("\"reconnectFailures\":%d,", this.reconnectFailures));
+			json.append("\"errorsByType\":{");
+			Iterator<Map.Entry<String,Long>> it = this.errorsByType.entrySet().iterator();
+			while(it.hasNext())
+			{
+				Map.Entry<String,Long> entry = it.next();
+				json.append("\"" + entry.getKey() + "\":" + entry.getValue());
+				if(it.hasNext())
+					json.append(",");
+			}
+			json.append("}}");
+
+			return json.toString();
+		}
+
+		/**
+		 * Formats a string independently of the default locale, so numbers
+		 * always use a decimal point.
+		 * @param format The format string
+		 * @param args The values to format
+		 * @return The formatted string
+		 */
+		protected static String format(String format, Object... args)
+		{
+			return String.format(Locale.US, format, args);
+		}
+
+		/**
+		 * Converts nanoseconds to milliseconds.
+		 * @param nanos The time in nanoseconds
+		 * @return The time in milliseconds
+		 */
+		protected static double toMillis(long nanos)
+		{
+			return nanos / 1e6;
+		}
+	}
+
+	/**
+	 * A growable list of primitive longs, so that recording latencies does
+	 * not box every measurement.
+	 */
+	protected static class LongList
+	{
+		protected long[] values = new long[1024];
+		protected int size;
+
+		/**
+		 * Adds a value.
+		 * @param value The value to add
+		 */
+		public void add(long value)
+		{
+			if(this.size == this.values.length)
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			this.values[this.size++] = value;
+		}
+
+		/**
+		 * Adds every value of another list.
+		 * @param other The list to add
+		 */
+		public void addAll(LongList other)
+		{
+			for(int i = 0; i < other.size; i++)
+				add(other.values[i]);
+		}
+
+		/**
+		 * Copies the values into a sorted array.
+		 * @return The sorted values
+		 */
+		public long[] toSortedArray()
+		{
+			long[] sorted = Arrays.copyOf(this.values, this.size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * A local stand-in for a UniData data source, for exercising the client
+	 * side of a workload without a server. Every query waits for the
+	 * configured latency and returns synthetic rows, padded to the FMT width
+	 * the way a real LIST would be.
+	 */
+	protected static class StandInConnection extends UniDataConnection
+	{
+		protected static final Pattern FMT_PATTERN = Pattern.compile("FMT \"(\\d+)L\"");
+
+		protected int rows;
+		protected long latencyMillis;
+		protected boolean active;
+
+		/**
+		 * Creates the stand-in.
+		 * @param rows The number of rows to return for each query
+		 * @param latencyMillis The simulated round-trip time in milliseconds
+		 */
+		public StandInConnection(int rows, long latencyMillis)
+		{
+			super("stand-in", "", "localhost", "stand-in");
+			this.rows = rows;
+			this.latencyMillis = latencyMillis;
+		}
+
+		/**
+		 * Marks the stand-in as connected.
+		 */
+		public void connect()
+		{
+			this.active = true;
+		}
+
+		/**
+		 * Marks the stand-in as disconnected.
+		 */
+		public void disconnect()
+		{
+			this.active = false;
+		}
+
+		/**
+		 * Determines if the stand-in is connected.
+		 * @return True if connected, false otherwise
+		 */
+		public boolean isActive()
+		{
+			return this.active;
+		}
+
+		/**
+		 * Waits for the simulated latency and returns synthetic rows.
+		 * @param query The query to answer
+		 * @return The synthetic response
+		 */
+		protected String exec(String query)
+		{
+			try
+			{
+				Thread.sleep(this.latencyMillis);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			// One value per field separator in the EVAL expression
+			int fields = Math.max(1, query.split(":'\\|':", -1).length - 1);
+			int width = FieldDefinition.DEFAULT_FORMAT_WIDTH;
+			Matcher matcher = FMT_PATTERN.matcher(query);
+			if(matcher.find())
+				width = Integer.parseInt(matcher.group(1));
+
+			StringBuilder response = new StringBuilder();
+			StringBuilder row = new StringBuilder();
+			for(int i = 0; i < this.rows; i++)
+			{
+				row.setLength(0);
+				for(int f = 0; f < fields; f++)
+					row.append("VALUE").append(i).append('.').append(f).append('|');
+				row.append('~');
+				while(row.length() < width)
+					row.append(' ');
+				response.append(row).append("\r\n");
+			}
+
+			return response.toString();
+		}
+
+		/**
+		 * Answers a query with a deadline. If the simulated latency is longer
+		 * than the deadline, waits for the deadline and then disconnects, as a
+		 * real connection does when it abandons a query.
+		 * @param query The query to answer
+		 * @param timeoutMillis The deadline for the query, in milliseconds
+		 * @return The synthetic response
+		 * @throws QueryTimeoutException If the latency is longer than the deadline
+		 * @throws InterruptedException If interrupted while waiting
+		 */
+		protected String exec(String query, long timeoutMillis) throws QueryTimeoutException, InterruptedException
+		{
+			if(this.latencyMillis <= timeoutMillis)
+				return exec(query);
+
+			Thread.sleep(timeoutMillis);
+			this.active = false;
+			throw new QueryTimeoutException("Query did not complete within " + timeoutMillis + "ms");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import asjava.uniobjects.UniCommand;
+import asjava.uniobjects.UniCommandException;
+import asjava.uniobjects.UniSession;
+import asjava.uniobjects.UniSessionException;
+
+/**
+ * A QueryTask runs a single query on a session in the background, so that
+ * the caller can stop waiting on it after a deadline. UniObjects cannot
+ * interrupt a command once it is running, so a query that is given up on is
+ * abandoned rather than cancelled: it finishes on its own thread, and only
+ * then is its session released or closed. Used by
+ * {@link UniDataConnection#query(String, long)} and {@link HedgedReader}.
+ */
+public class QueryTask implements Callable<String>
+{
+	/**
+	 * The executor that background queries run on. Its threads are daemon
+	 * threads, so a query that is never answered cannot keep the JVM alive.
+	 */
+	protected static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "judaw-query");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	protected UniSession session;
+	protected String query;
+	protected SessionPool sessionPool;
+	protected volatile boolean abandoned;
+	protected boolean closeSession;
+	protected boolean finished;
+	protected volatile long elapsedNanos;
+
+	/**
+	 * Creates the task.
+	 * @param session The session to run the query on
+	 * @param query The query to run
+	 * @param sessionPool The pool to release the session to once the query
+	 * finishes, or null if the session does not belong to a pool
+	 */
+	public QueryTask(UniSession session, String query, SessionPool sessionPool)
+	{
+		this.session = session;
+		this.query = query;
+		this.sessionPool = sessionPool;
+	}
+
+	/**
+	 * Runs the query.
+	 * @return The untrimmed response, or null if the task was abandoned
+	 * before it started
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 */
+	public String call() throws UniSessionException, UniCommandException
+	{
+		long start = System.nanoTime();
+		try
+		{
+			if(this.abandoned)
+				return null;
+
+			UniCommand command = this.session.command();
+			command.setCommand(this.query);
+			command.exec();
+
+			return command.response();
+		}
+		finally
+		{
+			this.elapsedNanos = System.nanoTime() - start;
+
+			boolean close;
+			synchronized(this)
+			{
+				this.finished = true;
+				close = this.closeSession;
+			}
+
+			if(close)
+				closeSession();
+			else if(this.sessionPool != null)
+				this.sessionPool.release(this.session);
+		}
+	}
+
+	/**
+	 * Abandons the query. Nothing waits for it any more, but a command that
+	 * is already running is left to finish, since it cannot be interrupted;
+	 * a task that has not started yet will not run at all. Does not block.
+	 * @param closeSession True to close the session once the task finishes,
+	 * for a session that does not belong to a pool and may still be busy;
+	 * false to release it to the pool as usual
+	 */
+	public void abandon(boolean closeSession)
+	{
+		boolean close;
+		synchronized(this)
+		{
+			this.abandoned = true;
+			this.closeSession = closeSession;
+			close = closeSession && this.finished;
+		}
+
+		// The task finished before it was abandoned, so close it here
+		if(close)
+			closeSession();
+	}
+
+	/**
+	 * Closes the task's session.
+	 */
+	protected void closeSession()
+	{
+		try
+		{
+			UniDataConnection.UniJava().closeSession(this.session);
+		}
+		catch(UniSessionException e)
+		{
+			// Nothing is waiting on the session any more
+		}
+	}
+
+	/**
+	 * Gets how long the query took to run, once it has finished.
+	 * @return The elapsed time in nanoseconds
+	 */
+	public long getElapsedNanos()
+	{
+		return elapsedNanos;
+	}
+
+	/**
+	 * Submits a task to the background executor.
+	 * @param task The task to run
+	 * @return The Future for the task's result
+	 */
+	protected static Future<String> submit(QueryTask task)
+	{
+		return EXECUTOR.submit(task);
+	}
+
+	/**
+	 * Rethrows the cause of a failed task as the exception the query
+	 * originally threw.
+	 * @param e The exception thrown by <code>Future.get()</code>
+	 * @throws UniCommandException If the query failed with a command issue
+	 * @throws UniSessionException If the query failed with a session issue
+	 */
+	protected static void rethrow(ExecutionException e) throws UniSessionException, UniCommandException
+	{
+		Throwable cause = e.getCause();
+		if(cause instanceof UniSessionException)
+			throw (UniSessionException) cause;
+		if(cause instanceof UniCommandException)
+			throw (UniCommandException) cause;
+		if(cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if(cause instanceof Error)
+			throw (Error) cause;
+		throw new RuntimeException(cause);
+	}
+}
@@ -0,0 +1,312 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import asjava.uniclientlibs.UniConnectionException;
+import asjava.uniobjects.UniSessionException;
+
+/**
+ * A ReplicaEndpoint is a read-only reporting copy of the database that a
+ * {@link RoutingConnection} sends reads to. It keeps a small pool of
+ * connections to the replica, along with the live measurements used to
+ * balance reads: a moving average of response times, the number of reads
+ * in flight, and a count of recent failures used to take the replica out
+ * of rotation while it is unhealthy.
+ */
+public class ReplicaEndpoint
+{
+	/**
+	 * The weight given to each new response time in the moving average.
+	 */
+	public static final double LATENCY_WEIGHT = 0.2;
+
+	protected RoutingConnection router;
+	protected String host;
+	protected String account;
+	protected int maxConnections;
+	protected List<UniDataConnection> connections = new ArrayList<UniDataConnection>();
+	protected BlockingQueue<UniDataConnection> idleConnections = new LinkedBlockingQueue<UniDataConnection>();
+	protected AtomicInteger inFlight = new AtomicInteger();
+	protected AtomicBoolean probing = new AtomicBoolean();
+	protected double latencyMillis = -1;
+	protected int consecutiveFailures;
+	protected long unhealthyUntil;
+
+	/**
+	 * Creates the endpoint. Use {@link RoutingConnection#addReplica(String, String)}
+	 * rather than calling this directly.
+	 * @param router The routing connection whose credentials and settings are used
+	 * @param host The replica's host
+	 * @param account The replica's account path
+	 * @param maxConnections The maximum number of connections to open to the replica
+	 */
+	public ReplicaEndpoint(RoutingConnection router, String host, String account, int maxConnections)
+	{
+		this.router = router;
+		this.host = host;
+		this.account = account;
+		this.maxConnections = Math.max(1, maxConnections);
+	}
+
+	/**
+	 * Takes a connection to the replica, connecting a new one if none are
+	 * idle and the maximum has not been reached, or otherwise waiting for one
+	 * to be released. The connection picks up the routing connection's select
+	 * list cache and parallel parse threshold.
+	 * @return A connected connection to the replica
+	 * @throws UniConnectionException If a new connection cannot connect
+	 * @throws UniSessionException If a new session cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a connection
+	 */
+	public UniDataConnection borrow() throws UniConnectionException, UniSessionException, InterruptedException
+	{
+		UniDataConnection connection = idleConnections.poll();
+		while(connection == null)
+		{
+			boolean open = false;
+			synchronized(this)
+			{
+				if(connections.size() < maxConnections)
+				{
+					connection = new UniDataConnection(router.getUsername(), router.getPassword(), host, account);
+					connections.add(connection);
+					open = true;
+				}
+			}
+
+			if(open)
+			{
+				try
+				{
+					connection.connect();
+				}
+				catch(UniSessionException e)
+				{
+					forget(connection);
+					throw e;
+				}
+				catch(UniConnectionException e)
+				{
+					forget(connection);
+					throw e;
+				}
+			}
+			else
+			{
+				// Connections that die are dropped rather than released, so
+				// keep checking for room instead of waiting on the queue forever
+				connection = idleConnections.poll(SessionPool.RECHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		connection.setSelectListCache(router.getSelectListCache());
+		connection.setSelectListCacheTtl(router.getSelectListCacheTtl());
+		connection.setParallelParseThreshold(router.getParallelParseThreshold());
+		return connection;
+	}
+
+	/**
+	 * Returns a borrowed connection. Connections that are no longer active
+	 * are disconnected and dropped, so that a fresh one can be opened.
+	 * @param connection The connection to return
+	 */
+	public void release(UniDataConnection connection)
+	{
+		if(connection.getSession() != null && connection.isActive())
+		{
+			idleConnections.offer(connection);
+			return;
+		}
+
+		forget(connection);
+		try
+		{
+			if(connection.getSession() != null)
+				connection.disconnect();
+		}
+		catch(UniSessionException e)
+		{
+			// The connection is already unusable; nothing more to do
+		}
+	}
+
+	/**
+	 * Drops a connection from the endpoint's list of open connections.
+	 * @param connection The connection to drop
+	 */
+	protected synchronized void forget(UniDataConnection connection)
+	{
+		connections.remove(connection);
+	}
+
+	/**
+	 * Disconnects every connection to the replica.
+	 */
+	public synchronized void close()
+	{
+		Iterator<UniDataConnection> it = connections.iterator();
+		while(it.hasNext())
+		{
+			try
+			{
+				it.next().disconnect();
+			}
+			catch(Exception e)
+			{
+				// Keep closing the rest
+			}
+		}
+
+		connections.clear();
+		idleConnections.clear();
+	}
+
+	/**
+	 * Claims the single read that tests whether an unhealthy replica has
+	 * recovered. Only one caller succeeds once the retry delay has passed;
+	 * the rest keep avoiding the replica until that read finishes.
+	 * @param now The current time, from <code>System.currentTimeMillis()</code>
+	 * @return True if the caller should send the test read, false otherwise
+	 */
+	public synchronized boolean tryProbe(long now)
+	{
+		if(consecutiveFailures < router.getFailureThreshold() || now < unhealthyUntil)
+			return false;
+
+		return probing.compareAndSet(false, true);
+	}
+
+	/**
+	 * Determines whether the replica is currently considered healthy.
+	 * @return True if healthy, false if out of rotation
+	 */
+	public synchronized boolean isHealthy()
+	{
+		return consecutiveFailures < router.getFailureThreshold();
+	}
+
+	/**
+	 * Scores the replica for balancing; lower is better. The score is the
+	 * average response time scaled by the number of reads in flight, so a
+	 * fast replica that is already busy can lose to a slower idle one.
+	 * Replicas with no measurements yet score 0, so they are tried first.
+	 * @return The replica's score
+	 */
+	public synchronized double getScore()
+	{
+		if(latencyMillis < 0)
+			return 0;
+
+		return latencyMillis * (inFlight.get() + 1);
+	}
+
+	/**
+	 * Marks the start of a read.
+	 */
+	public void begin()
+	{
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Marks the end of a read. A test read that ended without a success or
+	 * failure being recorded, eg on a command error, lets another through.
+	 */
+	public void end()
+	{
+		inFlight.decrementAndGet();
+		probing.set(false);
+	}
+
+	/**
+	 * Records a successful read, putting the replica back in rotation.
+	 * @param nanos How long the read took, in nanoseconds
+	 */
+	public synchronized void recordSuccess(long nanos)
+	{
+		recordLatency(nanos);
+		consecutiveFailures = 0;
+	}
+
+	/**
+	 * Adds a read's response time to the moving average without changing
+	 * the replica's health, eg for a read that timed out.
+	 * @param nanos How long the read took, in nanoseconds
+	 */
+	public synchronized void recordLatency(long nanos)
+	{
+		double millis = nanos / 1e6;
+		if(latencyMillis < 0)
+			latencyMillis = millis;
+		else
+			latencyMillis += LATENCY_WEIGHT * (millis - latencyMillis);
+	}
+
+	/**
+	 * Records a failed read. Once the failure threshold is reached, the
+	 * replica is taken out of rotation for the retry delay; after that one
+	 * read is let through to test it (see {@link #tryProbe(long)}), and
+	 * another failure takes it out again.
+	 */
+	public synchronized void recordFailure()
+	{
+		consecutiveFailures++;
+		if(consecutiveFailures >= router.getFailureThreshold())
+			unhealthyUntil = System.currentTimeMillis() + router.getRetryDelay();
+	}
+
+	/**
+	 * Gets the replica's host.
+	 * @return The host
+	 */
+	public String getHost()
+	{
+		return host;
+	}
+
+	/**
+	 * Gets the replica's account path.
+	 * @return The account path
+	 */
+	public String getAccount()
+	{
+		return account;
+	}
+
+	/**
+	 * Gets the moving average of the replica's response times.
+	 * @return The average response time in milliseconds, or -1 if unmeasured
+	 */
+	public synchronized double getLatencyMillis()
+	{
+		return latencyMillis;
+	}
+
+	/**
+	 * Gets the number of reads currently in flight on the replica.
+	 * @return The number of reads in flight
+	 */
+	public int getInFlight()
+	{
+		return inFlight.get();
+	}
+
+	/**
+	 * Gets the maximum number of connections opened to the replica.
+	 * @return The maximum number of connections
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+}
@@ -0,0 +1,585 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import edu.fresno.uniobjects.data.FieldDefinition;
+import edu.fresno.uniobjects.data.FieldSet;
+import edu.fresno.uniobjects.data.SelectList;
+import edu.fresno.uniobjects.exceptions.NotConnectedException;
+import edu.fresno.uniobjects.exceptions.QueryTimeoutException;
+
+import asjava.uniclientlibs.UniConnectionException;
+import asjava.uniobjects.UniCommandException;
+import asjava.uniobjects.UniSelectListException;
+import asjava.uniobjects.UniSessionException;
+
+/**
+ * RoutingConnection is a {@link UniDataConnection} to a primary database
+ * that also spreads reads across read-only reporting replicas. The
+ * connection's own host and account are the primary; replicas are added
+ * with {@link #addReplica(String, String)} and use the same credentials.
+ * <p>
+ * LIST reads through <code>getFields</code>, SELECTs that are read into a
+ * {@link SelectList}, counts, and {@link #queryReplica(String)} go to a
+ * replica, chosen by comparing two at random and picking the one with the
+ * lower {@link ReplicaEndpoint#getScore() score} (response time scaled by
+ * reads in flight). Everything else stays on the primary: raw queries,
+ * writes, subroutine calls, saved lists, <code>getFields</code> calls
+ * with a {@link FieldDefinition#setSelectOnly(boolean) select only}
+ * definition (which build an active select list), and any
+ * <code>getFields</code> call that follows a SELECT run with
+ * {@link #query(String)}, a select only <code>getFields</code>, or an
+ * {@link #activate(SelectList)}, since it depends on the primary's
+ * active select list. Reads that fail on a replica because of a session
+ * or connection problem are retried on the primary, and a replica that
+ * keeps failing is taken out of rotation for a while. Reads that time out
+ * or fail with a command error still count their time toward the
+ * replica's score, so a stalled replica is sent fewer reads.
+ * </p>
+ */
+public class RoutingConnection extends UniDataConnection
+{
+	/**
+	 * The number of consecutive failures after which a replica is taken out
+	 * of rotation, when no other threshold has been set.
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+	/**
+	 * How long, in milliseconds, an unhealthy replica stays out of rotation
+	 * before it is tried again, when no other delay has been set.
+	 */
+	public static final long DEFAULT_RETRY_DELAY = 30000;
+	/**
+	 * The number of connections opened to each replica, when no other
+	 * number has been set.
+	 */
+	public static final int DEFAULT_CONNECTIONS_PER_REPLICA = 4;
+
+	protected List<ReplicaEndpoint> replicas = new CopyOnWriteArrayList<ReplicaEndpoint>();
+	protected int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	protected long retryDelay = DEFAULT_RETRY_DELAY;
+	protected int connectionsPerReplica = DEFAULT_CONNECTIONS_PER_REPLICA;
+	protected volatile boolean selectListActive;
+	protected Random random = new Random();
+
+	/**
+	 * Creates the connection object, passing in the connection parameters
+	 * of the primary. Does not connect to the database, see {@link #connect()}.
+	 * @param username The username to connect as, on the primary and replicas
+	 * @param password The password for <code>username</code>
+	 * @param host The primary's host
+	 * @param account The primary's account path
+	 */
+	public RoutingConnection(String username, String password, String host, String account)
+	{
+		super(username, password, host, account);
+	}
+
+	/**
+	 * Adds a read-only replica. Connections to it are opened as reads need
+	 * them, up to {@link #getConnectionsPerReplica()}.
+	 * @param host The replica's host
+	 * @param account The replica's account path
+	 * @return The new {@link ReplicaEndpoint}
+	 */
+	public ReplicaEndpoint addReplica(String host, String account)
+	{
+		ReplicaEndpoint replica = new ReplicaEndpoint(this, host, account, this.connectionsPerReplica);
+		this.replicas.add(replica);
+		return replica;
+	}
+
+	/**
+	 * Removes a replica from rotation and disconnects from it.
+	 * @param replica The replica to remove
+	 */
+	public void removeReplica(ReplicaEndpoint replica)
+	{
+		this.replicas.remove(replica);
+		replica.close();
+	}
+
+	/**
+	 * Returns the replicas reads are spread across.
+	 * @return An unmodifiable List of {@link ReplicaEndpoint}s
+	 */
+	public List<ReplicaEndpoint> getReplicas()
+	{
+		return Collections.unmodifiableList(this.replicas);
+	}
+
+	/**
+	 * Disconnects from the primary and from every replica.
+	 * @throws UniSessionException If there is an issue with the primary's session
+	 */
+	public void disconnect() throws UniSessionException
+	{
+		Iterator<ReplicaEndpoint> it = this.replicas.iterator();
+		while(it.hasNext())
+			it.next().close();
+
+		super.disconnect();
+	}
+
+	/**
+	 * Executes a query on the primary. If the query builds an active select
+	 * list (eg <code>SELECT</code> or <code>GET.LIST</code>), the next
+	 * <code>getFields</code> call also runs on the primary so it can use it.
+	 * @param query The query to run
+	 * @return The response from the primary
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 */
+	public String query(String query) throws NotConnectedException, UniSessionException, UniCommandException
+	{
+		this.selectListActive = isSelectCommand(query);
+		return super.query(query);
+	}
+
+	/**
+	 * Executes a query on the primary with a deadline.
+	 * @param query The query to run
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return The response from the primary
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If the query did not complete in time
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 * @see #query(String)
+	 */
+	public String query(String query, long timeoutMillis) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		this.selectListActive = isSelectCommand(query);
+		return super.query(query, timeoutMillis);
+	}
+
+	/**
+	 * Executes a read-only query on a replica, or on the primary if no
+	 * replica is available. Only use this for queries that neither change
+	 * data nor depend on an active select list.
+	 * @param query The query to run
+	 * @return The response from the UniData data source
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 */
+	public String queryReplica(final String query) throws NotConnectedException, UniSessionException, UniCommandException
+	{
+		return read(new ReadOperation<String,RuntimeException,RuntimeException>()
+		{
+			public String onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException
+			{
+				return connection.query(query);
+			}
+
+			public String onPrimary() throws NotConnectedException, UniSessionException, UniCommandException
+			{
+				return RoutingConnection.super.query(query);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves fields from a replica, unless the primary has an active select
+	 * list from a previous {@link #query(String)} or {@link #activate(SelectList)},
+	 * or the definition is {@link FieldDefinition#isSelectOnly() select only},
+	 * in which case the primary is used.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @return A list of {@link FieldSet}s
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @see UniDataConnection#getFields(FieldDefinition)
+	 */
+	public List<FieldSet> getFields(final FieldDefinition fieldDefinition) throws NotConnectedException, UniSessionException, UniCommandException
+	{
+		if(fieldDefinition.isSelectOnly())
+		{
+			// SELECT.ONLY only builds an active select list, which the next
+			// getFields call needs to find on the primary
+			List<FieldSet> result = super.getFields(fieldDefinition);
+			this.selectListActive = true;
+			return result;
+		}
+
+		if(this.selectListActive)
+		{
+			// The LIST consumes the active select list
+			this.selectListActive = false;
+			return super.getFields(fieldDefinition);
+		}
+
+		return read(new ReadOperation<List<FieldSet>,RuntimeException,RuntimeException>()
+		{
+			public List<FieldSet> onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException
+			{
+				return connection.getFields(fieldDefinition);
+			}
+
+			public List<FieldSet> onPrimary() throws NotConnectedException, UniSessionException, UniCommandException
+			{
+				return RoutingConnection.super.getFields(fieldDefinition);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves fields from a replica with a deadline, unless the primary has
+	 * an active select list or the definition is select only.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return A list of {@link FieldSet}s
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If the query did not complete in time
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 * @see #getFields(FieldDefinition)
+	 */
+	public List<FieldSet> getFields(final FieldDefinition fieldDefinition, final long timeoutMillis) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		if(fieldDefinition.isSelectOnly())
+		{
+			List<FieldSet> result = super.getFields(fieldDefinition, timeoutMillis);
+			this.selectListActive = true;
+			return result;
+		}
+
+		if(this.selectListActive)
+		{
+			this.selectListActive = false;
+			return super.getFields(fieldDefinition, timeoutMillis);
+		}
+
+		return read(new ReadOperation<List<FieldSet>,QueryTimeoutException,InterruptedException>()
+		{
+			public List<FieldSet> onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+			{
+				return connection.getFields(fieldDefinition, timeoutMillis);
+			}
+
+			public List<FieldSet> onPrimary() throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+			{
+				return RoutingConnection.super.getFields(fieldDefinition, timeoutMillis);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves fields for the records in a {@link SelectList} from a replica.
+	 * The list is held on the client, so it can be activated on any replica.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @param selectList The records to retrieve data for
+	 * @return A list of {@link FieldSet}s
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 * @see UniDataConnection#getFields(FieldDefinition, SelectList)
+	 */
+	public List<FieldSet> getFields(final FieldDefinition fieldDefinition, final SelectList selectList) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		return read(new ReadOperation<List<FieldSet>,UniSelectListException,RuntimeException>()
+		{
+			public List<FieldSet> onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return connection.getFields(fieldDefinition, selectList);
+			}
+
+			public List<FieldSet> onPrimary() throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return RoutingConnection.super.getFields(fieldDefinition, selectList);
+			}
+		});
+	}
+
+	/**
+	 * Runs a SELECT on a replica and reads the resulting IDs into a
+	 * {@link SelectList}, which can then be used on the primary or any replica.
+	 * @param file The file being selected from, or null if unknown
+	 * @param query The SELECT query to run
+	 * @return The selected record IDs
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 * @see UniDataConnection#select(String, String)
+	 */
+	public SelectList select(final String file, final String query) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		return read(new ReadOperation<SelectList,UniSelectListException,RuntimeException>()
+		{
+			public SelectList onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return connection.select(file, query);
+			}
+
+			public SelectList onPrimary() throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return RoutingConnection.super.select(file, query);
+			}
+		});
+	}
+
+	/**
+	 * Counts the records a SELECT would select, on a replica.
+	 * @param fieldDefinition The {@link FieldDefinition} whose file and criteria to select
+	 * @return The number of records selected
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 * @see UniDataConnection#count(FieldDefinition)
+	 */
+	public int count(final FieldDefinition fieldDefinition) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		return read(new ReadOperation<Integer,UniSelectListException,RuntimeException>()
+		{
+			public Integer onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return connection.count(fieldDefinition);
+			}
+
+			public Integer onPrimary() throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+			{
+				return RoutingConnection.super.count(fieldDefinition);
+			}
+		});
+	}
+
+	/**
+	 * Makes a {@link SelectList} the primary's active select list, so the next
+	 * <code>getFields</code> call runs on the primary.
+	 * @param selectList The list to activate
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public void activate(SelectList selectList) throws NotConnectedException, UniSessionException, UniSelectListException
+	{
+		super.activate(selectList);
+		this.selectListActive = true;
+	}
+
+	/**
+	 * A read that can be run on a replica's connection or on the primary.
+	 * Besides the exceptions every read can throw, a read may throw up to two
+	 * more checked exception types, <code>X</code> and <code>Y</code>; reads
+	 * that throw fewer use <code>RuntimeException</code> for the rest.
+	 */
+	protected abstract class ReadOperation<T,X extends Exception,Y extends Exception>
+	{
+		/**
+		 * Runs the read on a connection to a replica.
+		 * @param connection The replica connection
+		 * @return The result of the read
+		 * @throws NotConnectedException If the connection is not active
+		 * @throws UniSessionException If there is an issue with the session
+		 * @throws UniCommandException If there is an issue with the command
+		 * @throws X If the read fails in a way particular to it
+		 * @throws Y If the read fails in a way particular to it
+		 */
+		public abstract T onReplica(UniDataConnection connection) throws NotConnectedException, UniSessionException, UniCommandException, X, Y;
+
+		/**
+		 * Runs the read on the primary, bypassing routing.
+		 * @return The result of the read
+		 * @throws NotConnectedException If the connection is not active
+		 * @throws UniSessionException If there is an issue with the session
+		 * @throws UniCommandException If there is an issue with the command
+		 * @throws X If the read fails in a way particular to it
+		 * @throws Y If the read fails in a way particular to it
+		 */
+		public abstract T onPrimary() throws NotConnectedException, UniSessionException, UniCommandException, X, Y;
+	}
+
+	/**
+	 * Runs a read on the best available replica, falling back to the primary
+	 * if there is none or if the replica fails with a session or connection
+	 * problem. Command errors and timeouts are not retried, since the primary
+	 * would most likely fail the same way.
+	 * @param operation The read to run
+	 * @return The result of the read
+	 * @throws NotConnectedException If the primary is needed and is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws X If the read fails in a way particular to it
+	 * @throws Y If the read fails in a way particular to it
+	 * @throws RuntimeException If interrupted while waiting for a connection
+	 * to the replica; the thread's interrupt status is set again first
+	 */
+	protected <T,X extends Exception,Y extends Exception> T read(ReadOperation<T,X,Y> operation) throws NotConnectedException, UniSessionException, UniCommandException, X, Y
+	{
+		ReplicaEndpoint replica = chooseReplica();
+		if(replica == null)
+			return operation.onPrimary();
+
+		UniDataConnection connection = null;
+		long start = 0;
+		boolean recorded = false;
+		replica.begin();
+		try
+		{
+			connection = replica.borrow();
+			// Timed after the borrow, so connecting is not counted as latency
+			start = System.nanoTime();
+			T result = operation.onReplica(connection);
+			replica.recordSuccess(System.nanoTime() - start);
+			recorded = true;
+			return result;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for a connection to " + replica.getHost(), e);
+		}
+		catch(UniSessionException e)
+		{
+			replica.recordFailure();
+			recorded = true;
+		}
+		catch(UniConnectionException e)
+		{
+			replica.recordFailure();
+			recorded = true;
+		}
+		catch(NotConnectedException e)
+		{
+			replica.recordFailure();
+			recorded = true;
+		}
+		finally
+		{
+			// A read that timed out or failed with a command error still
+			// took this long, so a stalled replica's score goes up
+			if(!recorded && start != 0)
+				replica.recordLatency(System.nanoTime() - start);
+			replica.end();
+			if(connection != null)
+				replica.release(connection);
+		}
+
+		return operation.onPrimary();
+	}
+
+	/**
+	 * Chooses the replica to send a read to, by picking two healthy replicas
+	 * at random and taking the one with the lower score. An unhealthy replica
+	 * whose retry delay has passed is chosen instead, for a single read that
+	 * tests whether it has recovered.
+	 * @return The chosen replica, or null if none is available
+	 */
+	protected ReplicaEndpoint chooseReplica()
+	{
+		long now = System.currentTimeMillis();
+		List<ReplicaEndpoint> available = new ArrayList<ReplicaEndpoint>();
+		Iterator<ReplicaEndpoint> it = this.replicas.iterator();
+		while(it.hasNext())
+		{
+			ReplicaEndpoint replica = it.next();
+			if(replica.isHealthy())
+				available.add(replica);
+			else if(replica.tryProbe(now))
+				return replica;
+		}
+
+		if(available.isEmpty())
+			return null;
+		if(available.size() == 1)
+			return available.get(0);
+
+		int first;
+		int second;
+		synchronized(this.random)
+		{
+			first = this.random.nextInt(available.size());
+			second = this.random.nextInt(available.size() - 1);
+		}
+		if(second >= first)
+			second++;
+
+		ReplicaEndpoint a = available.get(first);
+		ReplicaEndpoint b = available.get(second);
+		return a.getScore() <= b.getScore() ? a : b;
+	}
+
+	/**
+	 * Determines whether a query leaves an active select list behind.
+	 * @param query The query to check
+	 * @return True if the query builds a select list, false otherwise
+	 */
+	protected static boolean isSelectCommand(String query)
+	{
+		String verb = query.trim().split("\\s+", 2)[0].toUpperCase();
+		return verb.equals("SELECT") || verb.equals("SSELECT") || verb.equals("QSELECT")
+			|| verb.equals("NSELECT") || verb.equals("BSELECT") || verb.equals("GET.LIST")
+			|| verb.equals("FORM.LIST") || verb.equals("SEARCH") || verb.equals("ESEARCH");
+	}
+
+	/**
+	 * Gets the number of consecutive failures after which a replica is taken
+	 * out of rotation.
+	 * @return The failure threshold
+	 */
+	public int getFailureThreshold()
+	{
+		return failureThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures after which a replica is taken
+	 * out of rotation.
+	 * @param failureThreshold The failure threshold
+	 */
+	public void setFailureThreshold(int failureThreshold)
+	{
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * Gets how long an unhealthy replica stays out of rotation.
+	 * @return The retry delay in milliseconds
+	 */
+	public long getRetryDelay()
+	{
+		return retryDelay;
+	}
+
+	/**
+	 * Sets how long an unhealthy replica stays out of rotation before one
+	 * read is let through to test it.
+	 * @param retryDelay The retry delay in milliseconds
+	 */
+	public void setRetryDelay(long retryDelay)
+	{
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Gets the number of connections opened to each replica added from now on.
+	 * @return The number of connections per replica
+	 */
+	public int getConnectionsPerReplica()
+	{
+		return connectionsPerReplica;
+	}
+
+	/**
+	 * Sets the number of connections opened to each replica added from now on.
+	 * @param connectionsPerReplica The number of connections per replica
+	 */
+	public void setConnectionsPerReplica(int connectionsPerReplica)
+	{
+		this.connectionsPerReplica = connectionsPerReplica;
+	}
+}
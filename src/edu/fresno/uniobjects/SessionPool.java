@@ -0,0 +1,207 @@
+package edu.fresno.uniobjects;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.fresno.uniobjects.data.Subroutine;
+
+import asjava.uniclientlibs.UniConnectionException;
+import asjava.uniobjects.UniSession;
+import asjava.uniobjects.UniSessionException;
+import asjava.uniobjects.UniSubroutineException;
+
+/**
+ * A SessionPool holds a number of additional UniObjects sessions that are
+ * opened with the same parameters as a {@link UniDataConnection}, so that
+ * work can be spread across several sessions at once. Sessions are opened
+ * as they are needed, up to the maximum, and are reused once released.
+ */
+public class SessionPool
+{
+	/**
+	 * How long, in milliseconds, a thread waiting for a session waits before
+	 * checking whether a dropped session has made room for a new one.
+	 */
+	public static final long RECHECK_INTERVAL = 100;
+
+	protected UniDataConnection connection;
+	protected int maxSessions;
+	protected List<UniSession> sessions = new ArrayList<UniSession>();
+	protected BlockingQueue<UniSession> idleSessions = new LinkedBlockingQueue<UniSession>();
+
+	/**
+	 * Creates the pool. Does not open any sessions until they are borrowed.
+	 * @param connection The connection whose parameters new sessions use
+	 * @param maxSessions The maximum number of sessions to open
+	 * @throws IllegalArgumentException If maxSessions is less than 1
+	 */
+	public SessionPool(UniDataConnection connection, int maxSessions)
+	{
+		if(maxSessions < 1)
+			throw new IllegalArgumentException("A session pool needs at least one session");
+
+		this.connection = connection;
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Takes a session from the pool, opening a new one if none are idle and
+	 * the maximum has not been reached, or otherwise waiting for one to be
+	 * released. Every borrowed session must be returned with
+	 * {@link #release(UniSession)}.
+	 * @return A connected session
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniSessionException If a new session cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a session
+	 */
+	public UniSession borrow() throws UniConnectionException, UniSessionException, InterruptedException
+	{
+		UniSession session = null;
+		while(session == null)
+			session = borrow(RECHECK_INTERVAL, TimeUnit.MILLISECONDS);
+
+		return session;
+	}
+
+	/**
+	 * Takes a session from the pool as {@link #borrow()} does, but gives up if
+	 * none becomes free within the timeout.
+	 * @param timeout How long to wait for a session, or 0 to not wait
+	 * @param unit The unit of <code>timeout</code>
+	 * @return A connected session, or null if none was free in time
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniSessionException If a new session cannot be opened
+	 * @throws InterruptedException If interrupted while waiting for a session
+	 */
+	public UniSession borrow(long timeout, TimeUnit unit) throws UniConnectionException, UniSessionException, InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		UniSession session = idleSessions.poll();
+		while(session == null)
+		{
+			synchronized(this)
+			{
+				if(sessions.size() < maxSessions)
+				{
+					session = connection.openSession();
+					sessions.add(session);
+					return session;
+				}
+			}
+
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				return null;
+
+			// Sessions that die are dropped rather than released, so keep
+			// checking for room instead of waiting on the queue until the end
+			session = idleSessions.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(RECHECK_INTERVAL)), TimeUnit.NANOSECONDS);
+		}
+
+		return session;
+	}
+
+	/**
+	 * Returns a borrowed session to the pool. Sessions that are no longer
+	 * active are closed and dropped, so that a fresh one can be opened.
+	 * @param session The session to return
+	 */
+	public void release(UniSession session)
+	{
+		if(session.isActive())
+		{
+			idleSessions.offer(session);
+			return;
+		}
+
+		synchronized(this)
+		{
+			sessions.remove(session);
+		}
+		connection.forgetSubroutines(session);
+		try
+		{
+			UniDataConnection.UniJava().closeSession(session);
+		}
+		catch(UniSessionException e)
+		{
+			// The session is already unusable; nothing more to do
+		}
+	}
+
+	/**
+	 * Calls a cataloged subroutine on a session borrowed from the pool.
+	 * Each session keeps its own prepared subroutine handles, so repeated
+	 * calls do not rebuild them.
+	 * @param subroutine The {@link Subroutine} to call
+	 * @throws UniConnectionException If a new session cannot connect
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSubroutineException If there is an issue with the subroutine
+	 * @throws InterruptedException If interrupted while waiting for a session
+	 * @see UniDataConnection#call(Subroutine)
+	 */
+	public void call(Subroutine subroutine) throws UniConnectionException, UniSessionException, UniSubroutineException, InterruptedException
+	{
+		UniSession session = borrow();
+		try
+		{
+			connection.call(session, subroutine);
+		}
+		finally
+		{
+			release(session);
+		}
+	}
+
+	/**
+	 * Closes every session opened by the pool.
+	 * @throws UniSessionException If there is an issue closing a session
+	 */
+	public synchronized void close() throws UniSessionException
+	{
+		Iterator<UniSession> it = sessions.iterator();
+		while(it.hasNext())
+		{
+			UniSession session = it.next();
+			connection.forgetSubroutines(session);
+			UniDataConnection.UniJava().closeSession(session);
+		}
+
+		sessions.clear();
+		idleSessions.clear();
+	}
+
+	/**
+	 * Gets the connection whose parameters new sessions use.
+	 * @return The connection
+	 */
+	public UniDataConnection getConnection()
+	{
+		return connection;
+	}
+
+	/**
+	 * Gets the maximum number of sessions the pool will open.
+	 * @return The maximum number of sessions
+	 */
+	public int getMaxSessions()
+	{
+		return maxSessions;
+	}
+
+	/**
+	 * Gets the number of sessions currently open.
+	 * @return The number of open sessions
+	 */
+	public synchronized int getSessionCount()
+	{
+		return sessions.size();
+	}
+}
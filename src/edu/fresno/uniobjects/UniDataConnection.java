@@ -5,21 +5,40 @@ package edu.fresno.uniobjects;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import edu.fresno.uniobjects.data.Field;
 import edu.fresno.uniobjects.data.FieldDefinition;
 import edu.fresno.uniobjects.data.FieldSet;
+import edu.fresno.uniobjects.data.SelectList;
+import edu.fresno.uniobjects.data.Subroutine;
+import edu.fresno.uniobjects.data.WriteFailure;
 import edu.fresno.uniobjects.exceptions.NotConnectedException;
+import edu.fresno.uniobjects.exceptions.QueryTimeoutException;
 
 import asjava.uniclientlibs.UniConnectionException;
+import asjava.uniclientlibs.UniDynArray;
 import asjava.uniobjects.UniCommand;
 import asjava.uniobjects.UniCommandException;
 import asjava.uniobjects.UniJava;
+import asjava.uniobjects.UniSelectList;
+import asjava.uniobjects.UniSelectListException;
 import asjava.uniobjects.UniSession;
 import asjava.uniobjects.UniSessionException;
+import asjava.uniobjects.UniSubroutine;
+import asjava.uniobjects.UniSubroutineException;
 
 /**
  * UniDataConnection allows you to connect to a UniData data source,
@@ -44,6 +63,20 @@ public class UniDataConnection
 	 * The value mark.
 	 */
 	public static final String VALUE_MARK = "ý";
+	/**
+	 * The field mark.
+	 */
+	public static final String FIELD_MARK = "þ";
+	/**
+	 * The select list used by SELECT, LIST, SAVE.LIST and GET.LIST
+	 * when no other list is specified.
+	 */
+	public static final int DEFAULT_SELECT_LIST = 0;
+	/**
+	 * The response length, in characters, at which responses are parsed in
+	 * parallel when no other threshold has been set.
+	 */
+	public static final int DEFAULT_PARALLEL_PARSE_THRESHOLD = 4 * 1024 * 1024;
 	/**
 	 * The UniJava object is used to create and destroy sessions.
 	 * @deprecated As of version 1.3, replaced by getter {@link #UniJava()}
@@ -57,6 +90,13 @@ public class UniDataConnection
 	protected String username;
 	protected String password;
 	protected UniSession session;
+	protected AtomicLong bytesReceived = new AtomicLong();
+	protected AtomicLong paddingBytes = new AtomicLong();
+	protected int parallelParseThreshold = DEFAULT_PARALLEL_PARSE_THRESHOLD;
+	protected Map<String,SelectList> selectListCache;
+	protected long selectListCacheTtl;
+	protected Map<UniSession,Map<String,UniSubroutine>> subroutines =
+		Collections.synchronizedMap(new HashMap<UniSession,Map<String,UniSubroutine>>());
 
 	/**
 	 * Creates the connection object, passing in the connection parameters.
@@ -92,24 +132,43 @@ public class UniDataConnection
 	 */
 	public void connect() throws UniConnectionException, UniSessionException
 	{
-		this.session = UniDataConnection.UniJava().openSession();
-		this.session.setUserName(this.getUsername());
-		this.session.setPassword(this.getPassword());
-		this.session.setHostName(this.getHost());
-		this.session.setAccountPath(this.getAccount());
-		this.session.setDataSourceType(UniDataConnection.DBTYPE_UNIDATA);
+		this.session = this.openSession();
+	}
+
+	/**
+	 * Opens and connects a new session using this connection's parameters.
+	 * The session is independent of {@link #getSession()} and must be
+	 * closed with <code>UniJava.closeSession()</code> by the caller.
+	 * @return The connected session
+	 * @throws UniConnectionException If there is an issue with the connection
+	 * @throws UniSessionException If there is an issue with the session
+	 * @see SessionPool
+	 */
+	public UniSession openSession() throws UniConnectionException, UniSessionException
+	{
+		UniSession newSession = UniDataConnection.UniJava().openSession();
+		newSession.setUserName(this.getUsername());
+		newSession.setPassword(this.getPassword());
+		newSession.setHostName(this.getHost());
+		newSession.setAccountPath(this.getAccount());
+		newSession.setDataSourceType(UniDataConnection.DBTYPE_UNIDATA);
 
-		this.session.connect();
+		newSession.connect();
+		return newSession;
 	}
 
 	/**
 	 * Disconnects from the UniData data source using
-	 * <code>UniJava.closeSession()</code>.
+	 * <code>UniJava.closeSession()</code>. Does nothing if there is no
+	 * session, eg after a query with a deadline timed out.
 	 * @throws UniSessionException If there is an issue with the session
-	 * @throws NullPointerException If the session is null
 	 */
 	public void disconnect() throws UniSessionException
 	{
+			if(this.session == null)
+				return;
+
+			this.forgetSubroutines(this.session);
 			UniDataConnection.UniJava().closeSession(this.session);
 	}
 
@@ -122,6 +181,20 @@ public class UniDataConnection
 	 * @throws UniSessionException If there is an issue with the session
 	 */
 	public String query(String query) throws NotConnectedException, UniSessionException, UniCommandException
+	{
+		return this.exec(query).trim();
+	}
+
+	/**
+	 * Executes a query on the UniData connection and returns the response
+	 * exactly as it was received, without trimming.
+	 * @param query The query to run
+	 * @return The untrimmed response from the UniData data source
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 */
+	protected String exec(String query) throws NotConnectedException, UniSessionException, UniCommandException
 	{
 		if(!this.isActive())
 			throw new NotConnectedException();
@@ -131,7 +204,84 @@ public class UniDataConnection
 		command.setCommand(query);
 		command.exec();
 
-		return command.response().trim();
+		return command.response();
+	}
+
+	/**
+	 * Executes a query on the UniData connection, giving up if it has not
+	 * completed within <code>timeoutMillis</code>. A running command cannot be
+	 * interrupted, so a query that times out is abandoned: it is left to finish
+	 * on its own, and its session is closed once it does. The connection is
+	 * then no longer active, and must be reconnected with {@link #connect()}
+	 * before it is used again. For read-only queries that should also be
+	 * retried on another session when slow, see {@link HedgedReader}.
+	 * @param query The query to run
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return The response from the UniData data source
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If the query did not complete in time
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 */
+	public String query(String query, long timeoutMillis) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		return this.exec(query, timeoutMillis).trim();
+	}
+
+	/**
+	 * Executes a query on the UniData connection with a deadline and returns
+	 * the response exactly as it was received, without trimming.
+	 * @param query The query to run
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return The untrimmed response from the UniData data source
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If the query did not complete in time
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 * @see #query(String, long)
+	 */
+	protected String exec(String query, long timeoutMillis) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		if(!this.isActive())
+			throw new NotConnectedException();
+
+		QueryTask task = new QueryTask(this.session, query, null);
+		Future<String> future = QueryTask.submit(task);
+		try
+		{
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e)
+		{
+			abandon(task);
+			throw new QueryTimeoutException("Query did not complete within " + timeoutMillis + "ms");
+		}
+		catch(InterruptedException e)
+		{
+			abandon(task);
+			throw e;
+		}
+		catch(ExecutionException e)
+		{
+			QueryTask.rethrow(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Hands the connection's session over to a query that is still running,
+	 * so that it is closed once the query finishes rather than used for
+	 * another query at the same time. The connection is left inactive.
+	 * @param task The query being abandoned
+	 */
+	protected void abandon(QueryTask task)
+	{
+		UniSession busy = this.session;
+		this.session = null;
+		this.forgetSubroutines(busy);
+		task.abandon(true);
 	}
 
 	/**
@@ -214,16 +364,440 @@ public class UniDataConnection
 	public List<FieldSet> getFields(FieldDefinition fieldDefinition) throws NotConnectedException, UniSessionException, UniCommandException
 	{
 		String query = fieldDefinition.getQueryString();
-		String result = this.query(query);
-		if(result.isEmpty())
+		return parseResponse(this.exec(query), fieldDefinition);
+	}
+
+	/**
+	 * Executes a special LIST query on the UniData data source to retrieve
+	 * certain fields, giving up if it has not completed within
+	 * <code>timeoutMillis</code>.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @param timeoutMillis The deadline for the query, in milliseconds
+	 * @return A list of {@link FieldSet}s
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws QueryTimeoutException If the query did not complete in time
+	 * @throws InterruptedException If interrupted while waiting for the query
+	 * @see #query(String, long)
+	 */
+	public List<FieldSet> getFields(FieldDefinition fieldDefinition, long timeoutMillis) throws NotConnectedException, UniSessionException, UniCommandException, QueryTimeoutException, InterruptedException
+	{
+		String query = fieldDefinition.getQueryString();
+		return parseResponse(this.exec(query, timeoutMillis), fieldDefinition);
+	}
+
+	/**
+	 * Records the size of an untrimmed LIST response and parses it
+	 * into FieldSets.
+	 * @param response The untrimmed response from the LIST query
+	 * @param fieldDefinition The FieldDefinition used
+	 * @return A List of FieldSets, or null if the response was empty
+	 */
+	protected List<FieldSet> parseResponse(String response, FieldDefinition fieldDefinition)
+	{
+		// Padding around the whole response is trimmed here, as query()
+		// does, so that it does not turn into an empty trailing row
+		String data = response.trim();
+		this.bytesReceived.addAndGet(response.length());
+		this.paddingBytes.addAndGet(response.length() - data.length());
+		if(data.isEmpty())
 			return null;
 		else
-			return parseIntoFieldset(result, fieldDefinition);
+			return parseIntoFieldset(data, fieldDefinition);
+	}
+
+	/**
+	 * Activates <code>selectList</code> and then executes a LIST query to
+	 * retrieve fields for only the records in that list. Any selection
+	 * criteria on the {@link FieldDefinition} are applied on top of the list.
+	 * @param fieldDefinition The {@link FieldDefinition} that defines the data to retrieve
+	 * @param selectList The records to retrieve data for
+	 * @return A list of {@link FieldSet}s
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public List<FieldSet> getFields(FieldDefinition fieldDefinition, SelectList selectList) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		if(selectList.isEmpty())
+			return null;
+
+		this.activate(selectList);
+		return getFields(fieldDefinition);
+	}
+
+	/**
+	 * Runs the SELECT built by {@link FieldDefinition#getSelectString()} and
+	 * reads the resulting IDs into a {@link SelectList}. The server's active
+	 * select list is consumed in the process, so it will not affect later
+	 * queries; use {@link #activate(SelectList)} to use the list again.
+	 * If a select list cache has been set, the result is cached by the
+	 * SELECT statement and later calls with the same statement skip the
+	 * SELECT entirely.
+	 * @param fieldDefinition The {@link FieldDefinition} whose file and criteria to select
+	 * @return The selected record IDs
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 * @see #setSelectListCache(Map)
+	 */
+	public SelectList select(FieldDefinition fieldDefinition) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		return select(fieldDefinition.getFile(), fieldDefinition.getSelectString());
+	}
+
+	/**
+	 * Runs a SELECT query and reads the resulting IDs into a {@link SelectList}.
+	 * @param file The file being selected from, or null if unknown
+	 * @param query The SELECT query to run
+	 * @return The selected record IDs
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 * @see #select(FieldDefinition)
+	 */
+	public SelectList select(String file, String query) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		Map<String,SelectList> cache = this.getSelectListCache();
+		String key = this.getSelectListCacheKey(query);
+		if(cache != null)
+		{
+			SelectList cached = cache.get(key);
+			if(cached != null)
+			{
+				long age = System.currentTimeMillis() - cached.getCreated();
+				if(this.selectListCacheTtl <= 0 || age < this.selectListCacheTtl)
+					return cached;
+
+				cache.remove(key);
+			}
+		}
+
+		this.exec(query);
+		SelectList selectList = readSelectList(file);
+
+		if(cache != null)
+			cache.put(key, selectList);
+		return selectList;
+	}
+
+	/**
+	 * Runs a SELECT query and returns how many records it selected, without
+	 * transferring the IDs. The resulting active select list is cleared.
+	 * @param fieldDefinition The {@link FieldDefinition} whose file and criteria to select
+	 * @return The number of records selected
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniCommandException If there is an issue with the command
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public int count(FieldDefinition fieldDefinition) throws NotConnectedException, UniSessionException, UniCommandException, UniSelectListException
+	{
+		if(!this.isActive())
+			throw new NotConnectedException();
+
+		UniCommand command = this.session.command();
+		command.setCommand(fieldDefinition.getSelectString());
+		command.exec();
+		int count = command.getAtSelected();
+		this.session.selectList(DEFAULT_SELECT_LIST).clearList();
+
+		return count;
+	}
+
+	/**
+	 * Reactivates a saved list on the server (<code>GET.LIST</code>) and reads
+	 * its IDs into a {@link SelectList}.
+	 * @param name The name of the saved list
+	 * @return The record IDs in the saved list
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public SelectList getList(String name) throws NotConnectedException, UniSessionException, UniSelectListException
+	{
+		if(!this.isActive())
+			throw new NotConnectedException();
+
+		this.session.selectList(DEFAULT_SELECT_LIST).getList(name);
+		return readSelectList(null);
+	}
+
+	/**
+	 * Saves a {@link SelectList} on the server (<code>SAVE.LIST</code>) so that
+	 * it can be reactivated later, or from another session, with
+	 * {@link #getList(String)}.
+	 * @param selectList The list to save
+	 * @param name The name to save the list as
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public void saveList(SelectList selectList, String name) throws NotConnectedException, UniSessionException, UniSelectListException
+	{
+		this.activate(selectList);
+		this.session.selectList(DEFAULT_SELECT_LIST).saveList(name);
+	}
+
+	/**
+	 * Makes a {@link SelectList} the active select list on the server, so
+	 * that the next LIST or SELECT query only considers its records.
+	 * @param selectList The list to activate
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	public void activate(SelectList selectList) throws NotConnectedException, UniSessionException, UniSelectListException
+	{
+		if(!this.isActive())
+			throw new NotConnectedException();
+
+		StringBuilder ids = new StringBuilder();
+		Iterator<String> it = selectList.getIds().iterator();
+		while(it.hasNext())
+		{
+			ids.append(it.next());
+			if(it.hasNext())
+				ids.append(FIELD_MARK);
+		}
+
+		UniSelectList list = this.session.selectList(DEFAULT_SELECT_LIST);
+		list.clearList();
+		list.formList(new UniDynArray(ids.toString()));
+	}
+
+	/**
+	 * Reads the remaining IDs from the server's active select list into a
+	 * {@link SelectList}, consuming the active list.
+	 * @param file The file the IDs belong to, or null if unknown
+	 * @return The record IDs
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSelectListException If there is an issue with the select list
+	 */
+	protected SelectList readSelectList(String file) throws UniSessionException, UniSelectListException
+	{
+		UniDynArray array = this.session.selectList(DEFAULT_SELECT_LIST).readList();
+		List<String> ids = new ArrayList<String>();
+		if(array != null && array.length() > 0)
+		{
+			ids.addAll(Arrays.asList(array.toString().split(FIELD_MARK)));
+		}
+
+		return new SelectList(file, ids);
+	}
+
+	/**
+	 * Gets the cache used by {@link #select(FieldDefinition)}.
+	 * @return The select list cache, or null if caching is disabled
+	 */
+	public Map<String,SelectList> getSelectListCache()
+	{
+		return selectListCache;
+	}
+
+	/**
+	 * Sets the cache used by {@link #select(FieldDefinition)}, keyed by the
+	 * host, account and SELECT statement. Caching is disabled by default;
+	 * pass a Map to enable it. Passing the same thread-safe Map (such as a
+	 * <code>ConcurrentHashMap</code>) to several connections lets them share
+	 * the results of expensive SELECTs; only connections to the same host
+	 * and account see each other's lists. Cached lists are kept until they
+	 * are older than {@link #getSelectListCacheTtl()} or are removed with
+	 * {@link #invalidateSelectList(String)}.
+	 * @param selectListCache The cache to use, or null to disable caching
+	 */
+	public void setSelectListCache(Map<String,SelectList> selectListCache)
+	{
+		this.selectListCache = selectListCache;
+	}
+
+	/**
+	 * Gets how long a cached select list is used before the SELECT is run again.
+	 * @return The time to live in milliseconds, or 0 if lists never expire
+	 */
+	public long getSelectListCacheTtl()
+	{
+		return selectListCacheTtl;
+	}
+
+	/**
+	 * Sets how long a cached select list is used before the SELECT is run
+	 * again. Lists never expire by default.
+	 * @param selectListCacheTtl The time to live in milliseconds, or 0 if
+	 * lists never expire
+	 */
+	public void setSelectListCacheTtl(long selectListCacheTtl)
+	{
+		this.selectListCacheTtl = selectListCacheTtl;
+	}
+
+	/**
+	 * Removes a SELECT's cached list for this connection's host and account,
+	 * eg after writing records that it selects, so the next
+	 * {@link #select(String, String)} runs it again.
+	 * @param query The SELECT query whose list to remove
+	 */
+	public void invalidateSelectList(String query)
+	{
+		Map<String,SelectList> cache = this.getSelectListCache();
+		if(cache != null)
+			cache.remove(this.getSelectListCacheKey(query));
+	}
+
+	/**
+	 * Builds the select list cache key for a query, so that connections to
+	 * different hosts or accounts sharing one cache do not see each other's
+	 * lists.
+	 * @param query The SELECT query
+	 * @return The cache key
+	 */
+	protected String getSelectListCacheKey(String query)
+	{
+		return this.host + FIELD_MARK + this.account + FIELD_MARK + query;
+	}
+
+	/**
+	 * Creates a {@link BatchWriter} for writing many records to a file in
+	 * batches. Records are added to the writer and written with
+	 * {@link BatchWriter#execute()}.
+	 * @param file The file to write to
+	 * @return A new BatchWriter using this connection's session
+	 */
+	public BatchWriter getBatchWriter(String file)
+	{
+		return new BatchWriter(this, file);
+	}
+
+	/**
+	 * Convenience function for writing many records with a {@link BatchWriter}
+	 * using its default settings. Each {@link FieldSet} contains the named
+	 * fields and data to write to the record with the matching ID.
+	 * @param file The file to write to
+	 * @param records Map of record IDs to the fields to write
+	 * @return A List of {@link WriteFailure}s, empty if every record was written
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws InterruptedException If interrupted while writing
+	 */
+	public List<WriteFailure> writeRecords(String file, Map<String,FieldSet> records) throws NotConnectedException, InterruptedException
+	{
+		BatchWriter writer = this.getBatchWriter(file);
+		writer.addAll(records);
+		return writer.execute();
+	}
+
+	/**
+	 * Calls a cataloged subroutine on this connection's session. The
+	 * subroutine's arguments are passed in, and once the call returns they
+	 * are replaced with the values passed back. The underlying UniObjects
+	 * subroutine handle is prepared once per session and reused by later
+	 * calls to the same subroutine.
+	 * @param subroutine The {@link Subroutine} to call
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSubroutineException If there is an issue with the subroutine
+	 * @see SessionPool#call(Subroutine)
+	 */
+	public void call(Subroutine subroutine) throws NotConnectedException, UniSessionException, UniSubroutineException
+	{
+		if(!this.isActive())
+			throw new NotConnectedException();
+
+		this.call(this.session, subroutine);
+	}
+
+	/**
+	 * Convenience function for {@link #call(Subroutine)} without having to
+	 * create a new Subroutine.
+	 * @param name The cataloged name of the subroutine
+	 * @param args The arguments to pass
+	 * @return The {@link Subroutine}, holding the values passed back
+	 * @throws NotConnectedException If the UniData connection is not active
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSubroutineException If there is an issue with the subroutine
+	 */
+	public Subroutine call(String name, String... args) throws NotConnectedException, UniSessionException, UniSubroutineException
+	{
+		Subroutine subroutine = new Subroutine(name, args);
+		this.call(subroutine);
+		return subroutine;
+	}
+
+	/**
+	 * Calls a cataloged subroutine on the given session, using a cached
+	 * subroutine handle for that session if there is one.
+	 * @param session The session to call the subroutine on
+	 * @param subroutine The {@link Subroutine} to call
+	 * @throws UniSessionException If there is an issue with the session
+	 * @throws UniSubroutineException If there is an issue with the subroutine
+	 */
+	protected void call(UniSession session, Subroutine subroutine) throws UniSessionException, UniSubroutineException
+	{
+		UniSubroutine handle = getSubroutineHandle(session, subroutine.getName(), subroutine.getNumArgs());
+		handle.resetArgs();
+		for(int i = 0; i < subroutine.getNumArgs(); i++)
+			handle.setArg(i, subroutine.getArg(i));
+
+		handle.call();
+
+		for(int i = 0; i < subroutine.getNumArgs(); i++)
+			subroutine.setArg(i, handle.getArg(i));
+	}
+
+	/**
+	 * Gets the cached subroutine handle for a session, preparing and caching
+	 * a new one if needed. Handles are cached by name and argument count
+	 * until {@link #forgetSubroutines(UniSession)} is called for the session.
+	 * @param session The session the handle belongs to
+	 * @param name The cataloged name of the subroutine
+	 * @param numArgs The number of arguments the subroutine takes
+	 * @return The subroutine handle
+	 * @throws UniSessionException If there is an issue with the session
+	 */
+	protected UniSubroutine getSubroutineHandle(UniSession session, String name, int numArgs) throws UniSessionException
+	{
+		Map<String,UniSubroutine> handles;
+		synchronized(this.subroutines)
+		{
+			handles = this.subroutines.get(session);
+			if(handles == null)
+			{
+				handles = new HashMap<String,UniSubroutine>();
+				this.subroutines.put(session, handles);
+			}
+		}
+
+		String key = name + "/" + numArgs;
+		synchronized(handles)
+		{
+			UniSubroutine handle = handles.get(key);
+			if(handle == null)
+			{
+				handle = session.subroutine(name, numArgs);
+				handles.put(key, handle);
+			}
+			return handle;
+		}
+	}
+
+	/**
+	 * Drops the cached subroutine handles for a session. Must be called when
+	 * a session is closed, since each handle refers back to its session and
+	 * would otherwise keep it, and itself, cached for good.
+	 * @param session The session being closed
+	 */
+	protected void forgetSubroutines(UniSession session)
+	{
+		this.subroutines.remove(session);
 	}
 
 	/**
 	 * Given the data from a query() call and a fieldDefinition, this function parses
-	 * the data out into FieldSets for ease-of-use.
+	 * the data out into FieldSets for ease-of-use. Data at least as long as
+	 * {@link #getParallelParseThreshold()} is parsed in parallel.
 	 * @param data The data from query()
 	 * @param fieldDefinition The FieldDefinition used
 	 * @return A List of FieldSets which contains the Fields with data
@@ -233,15 +807,37 @@ public class UniDataConnection
 		if(data.trim().isEmpty())
 			return null;
 
+		if(this.parallelParseThreshold > 0 && data.length() >= this.parallelParseThreshold
+			&& ForkJoinPool.getCommonPoolParallelism() > 1
+			&& Pattern.matches(fieldDefinition.getRowSeparatorRegex(), fieldDefinition.getRowSeparator()))
+			return parseInParallel(data, fieldDefinition);
+
 		List<FieldSet> fieldSets = new ArrayList<FieldSet>();
 
 		// Split on rowSeparator to get an array of rows
-		List<String> rows = Arrays.asList(data.split(fieldDefinition.getRowSeparatorRegex()));
+		String[] rows = data.split(fieldDefinition.getRowSeparatorRegex());
+		this.paddingBytes.addAndGet(parseRows(rows, rows.length, fieldDefinition, fieldSets));
+
+		return fieldSets;
+	}
+
+	/**
+	 * Parses rows into FieldSets.
+	 * @param rows The rows, split on the row separator
+	 * @param count The number of rows to parse, starting from the first
+	 * @param fieldDefinition The FieldDefinition used
+	 * @param fieldSets The List to add the FieldSets to
+	 * @return The number of padding characters trimmed from the rows
+	 */
+	protected long parseRows(String[] rows, int count, FieldDefinition fieldDefinition, List<FieldSet> fieldSets)
+	{
+		long padding = 0;
 		// For each row, split on fieldSeparator to get an array of fields for that row.
-		Iterator<String> rowIter = rows.iterator();
-		while(rowIter.hasNext())
+		for(int row = 0; row < count; row++)
 		{
-			String line = rowIter.next().trim();
+			String rawLine = rows[row];
+			String line = rawLine.trim();
+			padding += rawLine.length() - line.length();
 			List<String> rowFields =
 				Arrays.asList(line.split(fieldDefinition.getFieldSeparatorRegex()));
 
@@ -267,7 +863,164 @@ public class UniDataConnection
 			fieldSets.add(set);
 		}
 
-		return fieldSets;
+		return padding;
+	}
+
+	/**
+	 * Parses data into FieldSets on the fork-join pool. The data is cut into
+	 * chunks just after row separators, the chunks are parsed concurrently,
+	 * and the rows are reassembled in their original order, giving the same
+	 * result as parsing the data on one thread.
+	 * @param data The data from query()
+	 * @param fieldDefinition The FieldDefinition used
+	 * @return A List of FieldSets which contains the Fields with data
+	 */
+	protected List<FieldSet> parseInParallel(String data, FieldDefinition fieldDefinition)
+	{
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		String separator = fieldDefinition.getRowSeparator();
+		int chunks = pool.getParallelism() * 4;
+
+		List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		for(int k = 1; k < chunks; k++)
+		{
+			int target = (int) ((long) data.length() * k / chunks);
+			if(target <= bounds.get(bounds.size() - 1))
+				continue;
+			int index = data.indexOf(separator, target);
+			if(index < 0)
+				break;
+			int end = index + separator.length();
+			if(end >= data.length())
+				break;
+			bounds.add(end);
+		}
+		bounds.add(data.length());
+
+		return pool.invoke(new ParseTask(data, bounds, 0, bounds.size() - 1, fieldDefinition));
+	}
+
+	/**
+	 * Parses a range of chunks of a response, splitting the range in half
+	 * until only one chunk is left.
+	 */
+	protected class ParseTask extends RecursiveTask<List<FieldSet>>
+	{
+		private static final long serialVersionUID = 4118270398512350772L;
+
+		protected String data;
+		protected List<Integer> bounds;
+		protected int first;
+		protected int last;
+		protected FieldDefinition fieldDefinition;
+
+		/**
+		 * Creates the task.
+		 * @param data The whole response
+		 * @param bounds The offsets where the chunks start, followed by the length of the data
+		 * @param first The index of the first chunk to parse
+		 * @param last The index after the last chunk to parse
+		 * @param fieldDefinition The FieldDefinition used
+		 */
+		public ParseTask(String data, List<Integer> bounds, int first, int last, FieldDefinition fieldDefinition)
+		{
+			this.data = data;
+			this.bounds = bounds;
+			this.first = first;
+			this.last = last;
+			this.fieldDefinition = fieldDefinition;
+		}
+
+		/**
+		 * Parses the chunks.
+		 * @return The FieldSets of the chunks, in order
+		 */
+		protected List<FieldSet> compute()
+		{
+			if(this.last - this.first > 1)
+			{
+				int middle = (this.first + this.last) / 2;
+				ParseTask left = new ParseTask(this.data, this.bounds, this.first, middle, this.fieldDefinition);
+				ParseTask right = new ParseTask(this.data, this.bounds, middle, this.last, this.fieldDefinition);
+				right.fork();
+				List<FieldSet> fieldSets = left.compute();
+				fieldSets.addAll(right.join());
+				return fieldSets;
+			}
+
+			int end = this.bounds.get(this.last);
+			String chunk = this.data.substring(this.bounds.get(this.first), end);
+			// Every chunk but the last ends with a row separator. Keep the
+			// empty string after it while splitting, so empty rows inside the
+			// chunk survive, and then drop it, as it is not a row of its own.
+			boolean lastChunk = end == this.data.length();
+			String[] rows = lastChunk
+				? chunk.split(this.fieldDefinition.getRowSeparatorRegex())
+				: chunk.split(this.fieldDefinition.getRowSeparatorRegex(), -1);
+			int count = lastChunk ? rows.length : rows.length - 1;
+
+			List<FieldSet> fieldSets = new ArrayList<FieldSet>(count);
+			paddingBytes.addAndGet(parseRows(rows, count, this.fieldDefinition, fieldSets));
+			return fieldSets;
+		}
+	}
+
+	/**
+	 * Gets the response length, in characters, at which
+	 * {@link #getFields(FieldDefinition)} switches to parsing in parallel.
+	 * @return The parallel parse threshold, or 0 if parallel parsing is disabled
+	 */
+	public int getParallelParseThreshold()
+	{
+		return parallelParseThreshold;
+	}
+
+	/**
+	 * Sets the response length, in characters, at which
+	 * {@link #getFields(FieldDefinition)} switches to parsing in parallel on
+	 * the common fork-join pool. Parallel parsing is only used when the pool
+	 * has more than one thread and the row separator regex matches the row
+	 * separator string.
+	 * @param parallelParseThreshold The parallel parse threshold, or 0 to disable parallel parsing
+	 */
+	public void setParallelParseThreshold(int parallelParseThreshold)
+	{
+		this.parallelParseThreshold = parallelParseThreshold;
+	}
+
+	/**
+	 * Gets the total size of the responses received by
+	 * {@link #getFields(FieldDefinition)} since the connection was created
+	 * or {@link #resetStatistics()} was last called. Sizes are counted in
+	 * characters, which matches bytes for single-byte encodings.
+	 * @return The number of bytes received
+	 */
+	public long getBytesReceived()
+	{
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Gets how much of {@link #getBytesReceived()} was whitespace padding
+	 * trimmed away from the rows, which is the amount saved by narrowing the
+	 * output width (see {@link FieldDefinition#setFormatWidth(int)} and
+	 * {@link FieldDefinition#setAdaptiveWidth(boolean)}).
+	 * @return The number of padding bytes received
+	 */
+	public long getPaddingBytes()
+	{
+		return paddingBytes.get();
+	}
+
+	/**
+	 * Resets the counters returned by {@link #getBytesReceived()} and
+	 * {@link #getPaddingBytes()}.
+	 */
+	public void resetStatistics()
+	{
+		this.bytesReceived.set(0);
+		this.paddingBytes.set(0);
 	}
 
 	/**
@@ -357,7 +1110,7 @@ public class UniDataConnection
 	 */
 	public boolean isActive()
 	{
-		return this.session.isActive();
+		return this.session != null && this.session.isActive();
 	}
 
 }
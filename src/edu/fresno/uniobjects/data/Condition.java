@@ -0,0 +1,387 @@
+package edu.fresno.uniobjects.data;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A Condition is a single piece of selection criteria (a <code>WITH</code>
+ * clause) that a {@link FieldDefinition} passes along to the UniData data
+ * source, so that rows are filtered on the server rather than after the
+ * data has been retrieved. Conditions are usually created with one of the
+ * static factory methods, such as {@link #equal(String, String)} or
+ * {@link #between(String, String, String)}.
+ */
+public class Condition
+{
+	/**
+	 * Equal to
+	 */
+	public static final String EQ = "EQ";
+	/**
+	 * Not equal to
+	 */
+	public static final String NE = "NE";
+	/**
+	 * Less than
+	 */
+	public static final String LT = "LT";
+	/**
+	 * Less than or equal to
+	 */
+	public static final String LE = "LE";
+	/**
+	 * Greater than
+	 */
+	public static final String GT = "GT";
+	/**
+	 * Greater than or equal to
+	 */
+	public static final String GE = "GE";
+	/**
+	 * Matches a UniQuery pattern (eg <code>"SMITH..."</code>)
+	 */
+	public static final String LIKE = "LIKE";
+	/**
+	 * Inclusive range; takes exactly two values (low and high).
+	 */
+	public static final String BETWEEN = "BETWEEN";
+	/**
+	 * The field has a value (<code>WITH FIELD</code>); takes no values.
+	 */
+	public static final String PRESENT = "PRESENT";
+	/**
+	 * The field has no value (<code>WITH NO FIELD</code>); takes no values.
+	 */
+	public static final String ABSENT = "ABSENT";
+
+	protected String fieldName;
+	protected String operator;
+	protected List<String> values = new ArrayList<String>();
+	protected boolean every;
+
+	/**
+	 * Create a Condition, specifying the field name, the operator, and the
+	 * values to compare against. Supplying more than one value to a
+	 * comparison operator matches any of the values (an IN-list).
+	 * @param fieldName The name of the field to test
+	 * @param operator One of the operator constants, eg {@link #EQ}
+	 * @param values The values to compare the field against
+	 */
+	public Condition(String fieldName, String operator, String... values)
+	{
+		setFieldName(fieldName);
+		setOperator(operator);
+		setValues(Arrays.asList(values));
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field equals the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition equal(String fieldName, String value)
+	{
+		return new Condition(fieldName, EQ, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field does not equal the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition notEqual(String fieldName, String value)
+	{
+		return new Condition(fieldName, NE, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field is less than the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition lessThan(String fieldName, String value)
+	{
+		return new Condition(fieldName, LT, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field is less than or
+	 * equal to the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition lessOrEqual(String fieldName, String value)
+	{
+		return new Condition(fieldName, LE, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field is greater than the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition greaterThan(String fieldName, String value)
+	{
+		return new Condition(fieldName, GT, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field is greater than or
+	 * equal to the value.
+	 * @param fieldName The name of the field to test
+	 * @param value The value to compare against
+	 * @return The new Condition
+	 */
+	public static Condition greaterOrEqual(String fieldName, String value)
+	{
+		return new Condition(fieldName, GE, value);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field falls within the
+	 * inclusive range <code>low</code> to <code>high</code>.
+	 * @param fieldName The name of the field to test
+	 * @param low The lowest matching value
+	 * @param high The highest matching value
+	 * @return The new Condition
+	 */
+	public static Condition between(String fieldName, String low, String high)
+	{
+		return new Condition(fieldName, BETWEEN, low, high);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field equals any one
+	 * of the values.
+	 * @param fieldName The name of the field to test
+	 * @param values The values to compare against
+	 * @return The new Condition
+	 */
+	public static Condition in(String fieldName, String... values)
+	{
+		return new Condition(fieldName, EQ, values);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field equals any one
+	 * of the values.
+	 * @param fieldName The name of the field to test
+	 * @param values A List of values to compare against
+	 * @return The new Condition
+	 */
+	public static Condition in(String fieldName, List<String> values)
+	{
+		return new Condition(fieldName, EQ, values.toArray(new String[values.size()]));
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field matches a UniQuery
+	 * pattern, eg <code>"SMITH..."</code>.
+	 * @param fieldName The name of the field to test
+	 * @param pattern The pattern to match
+	 * @return The new Condition
+	 */
+	public static Condition like(String fieldName, String pattern)
+	{
+		return new Condition(fieldName, LIKE, pattern);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field has a value.
+	 * @param fieldName The name of the field to test
+	 * @return The new Condition
+	 */
+	public static Condition present(String fieldName)
+	{
+		return new Condition(fieldName, PRESENT);
+	}
+
+	/**
+	 * Creates a Condition matching rows where the field has no value.
+	 * @param fieldName The name of the field to test
+	 * @return The new Condition
+	 */
+	public static Condition absent(String fieldName)
+	{
+		return new Condition(fieldName, ABSENT);
+	}
+
+	/**
+	 * Builds the <code>WITH</code> clause for this condition, quoting each
+	 * value as a UniQuery literal.
+	 * @return The selection clause, eg <code>WITH LAST.NAME EQ "SMITH"</code>
+	 * @throws IllegalArgumentException If the operator is not recognized, the
+	 * wrong number of values was supplied, or a value cannot be quoted
+	 */
+	public String getQueryString()
+	{
+		boolean valueTest = !PRESENT.equals(getOperator()) && !ABSENT.equals(getOperator());
+		String every = isEvery() && valueTest ? "EVERY " : "";
+
+		StringBuilder clause = new StringBuilder("WITH ");
+		if(ABSENT.equals(getOperator()))
+			clause.append("NO ");
+		clause.append(every + getFieldName());
+
+		if(!valueTest)
+		{
+			checkValueCount(0);
+		}
+		else if(BETWEEN.equals(getOperator()))
+		{
+			checkValueCount(2);
+			clause.append(" " + GE + " " + quote(getValues().get(0)));
+			clause.append(" AND " + every + getFieldName());
+			clause.append(" " + LE + " " + quote(getValues().get(1)));
+		}
+		else if(isComparison(getOperator()))
+		{
+			if(getValues().isEmpty())
+				throw new IllegalArgumentException("Operator " + getOperator() + " requires at least one value");
+			clause.append(" " + getOperator());
+			Iterator<String> it = getValues().iterator();
+			while(it.hasNext())
+				clause.append(" " + quote(it.next()));
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown operator " + getOperator());
+		}
+
+		return clause.toString();
+	}
+
+	/**
+	 * Quotes a value as a UniQuery literal. Double quotes are used unless the
+	 * value contains one, in which case single quotes and then backslashes
+	 * are tried.
+	 * @param value The value to quote
+	 * @return The quoted value
+	 * @throws IllegalArgumentException If the value contains every delimiter
+	 */
+	public static String quote(String value)
+	{
+		if(value == null)
+			value = "";
+
+		if(value.indexOf('"') < 0)
+			return "\"" + value + "\"";
+		else if(value.indexOf('\'') < 0)
+			return "'" + value + "'";
+		else if(value.indexOf('\\') < 0)
+			return "\\" + value + "\\";
+
+		throw new IllegalArgumentException("Value cannot be quoted as a UniQuery literal: " + value);
+	}
+
+	/**
+	 * Determines if the operator is a plain comparison that takes one or
+	 * more values.
+	 * @param operator The operator to test
+	 * @return True if the operator is a comparison, false otherwise
+	 */
+	protected static boolean isComparison(String operator)
+	{
+		return EQ.equals(operator) || NE.equals(operator) || LT.equals(operator)
+			|| LE.equals(operator) || GT.equals(operator) || GE.equals(operator)
+			|| LIKE.equals(operator);
+	}
+
+	/**
+	 * Ensures the condition has exactly <code>count</code> values.
+	 * @param count The required number of values
+	 * @throws IllegalArgumentException If the count does not match
+	 */
+	protected void checkValueCount(int count)
+	{
+		if(getValues().size() != count)
+			throw new IllegalArgumentException("Operator " + getOperator() + " requires "
+				+ count + " value(s), got " + getValues().size());
+	}
+
+	/**
+	 * Gets the field name.
+	 * @return The field name
+	 */
+	public String getFieldName()
+	{
+		return fieldName;
+	}
+
+	/**
+	 * Sets the field name.
+	 * @param fieldName The field name to set
+	 */
+	public void setFieldName(String fieldName)
+	{
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * Gets the operator.
+	 * @return The operator
+	 */
+	public String getOperator()
+	{
+		return operator;
+	}
+
+	/**
+	 * Sets the operator.
+	 * @param operator One of the operator constants, eg {@link #EQ}
+	 */
+	public void setOperator(String operator)
+	{
+		this.operator = operator;
+	}
+
+	/**
+	 * Gets the values the field is compared against.
+	 * @return The List of values
+	 */
+	public List<String> getValues()
+	{
+		return values;
+	}
+
+	/**
+	 * Sets the values the field is compared against.
+	 * @param values The List of values
+	 */
+	public void setValues(List<String> values)
+	{
+		this.values = values;
+	}
+
+	/**
+	 * Determines whether every value of a multivalued field must match
+	 * (<code>WITH EVERY</code>), rather than any one of them.
+	 * @return True if every value must match, false otherwise
+	 */
+	public boolean isEvery()
+	{
+		return every;
+	}
+
+	/**
+	 * Sets whether every value of a multivalued field must match
+	 * (<code>WITH EVERY</code>), rather than any one of them. Ignored for
+	 * {@link #PRESENT} and {@link #ABSENT}, which already test the field as
+	 * a whole.
+	 * @param every True if every value must match, false otherwise
+	 */
+	public void setEvery(boolean every)
+	{
+		this.every = every;
+	}
+}
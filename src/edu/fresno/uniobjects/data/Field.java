@@ -22,6 +22,7 @@ public class Field
 	protected String fieldName;
 	protected String friendlyName;
 	protected String data;
+	protected int width;
 
 	/**
 	 * Create a field with no data
@@ -77,6 +78,27 @@ public class Field
 		this.fieldName = fieldName;
 	}
 
+	/**
+	 * Gets the maximum expected width of the field's data.
+	 * @return The width in characters, or 0 if unknown
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Sets the maximum expected width of the field's data, used by
+	 * {@link FieldDefinition#setAdaptiveWidth(boolean)} to size the output
+	 * of the LIST command. Data wider than this may be wrapped by the
+	 * UniData data source.
+	 * @param width The width in characters, or 0 if unknown
+	 */
+	public void setWidth(int width)
+	{
+		this.width = width;
+	}
+
 	/**
 	 * Gets the user-friendly name for the field.
 	 * @return The user-friendly name for the field
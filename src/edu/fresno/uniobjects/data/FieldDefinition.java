@@ -19,6 +19,12 @@ import edu.fresno.uniobjects.UniDataConnection;
  */
 public class FieldDefinition
 {
+	/**
+	 * The output width, in characters, used for each row when no other
+	 * width has been set.
+	 */
+	public static final int DEFAULT_FORMAT_WIDTH = 300;
+
 	protected String file;
 	protected List<Field> fields = new ArrayList<Field>();
 	protected boolean selectOnly;
@@ -26,6 +32,12 @@ public class FieldDefinition
 	protected String fieldSeparatorRegex = "\\|";
 	protected String rowSeparator = "~";
 	protected String rowSeparatorRegex = "~";
+	protected List<Condition> conditions = new ArrayList<Condition>();
+	protected boolean matchAny;
+	protected List<String> sortBy = new ArrayList<String>();
+	protected int sample;
+	protected int formatWidth = DEFAULT_FORMAT_WIDTH;
+	protected boolean adaptiveWidth;
 
 	/**
 	 * Construct a new FieldDefinition, specifying only the file.
@@ -55,7 +67,9 @@ public class FieldDefinition
 	public String getQueryString()
 	{
 		StringBuilder query = new StringBuilder();
-		query.append("LIST " + getFile() + " EVAL\"");
+		query.append("LIST " + getFile());
+		appendCriteria(query);
+		query.append(" EVAL\"");
 		Iterator<Field> it = getFields().iterator();
 		// For each field, add it to the list
 		while(it.hasNext())
@@ -64,7 +78,7 @@ public class FieldDefinition
 			query.append(fieldName);
 			query.append(":'" + getFieldSeparator() + "':");
 		}
-		query.append("'" + getRowSeparator() + "'\" FMT \"300L\" ");
+		query.append("'" + getRowSeparator() + "'\" FMT \"" + getEffectiveFormatWidth() + "L\" ");
 		query.append("ID.SUP HDR.SUP COL.SUP NO.PAGE COUNT.SUP");
 		if(isSelectOnly())
 			query.append(" SELECT.ONLY");
@@ -72,6 +86,46 @@ public class FieldDefinition
 		return query.toString();
 	}
 
+	/**
+	 * Builds a SELECT command that creates an active select list using
+	 * the same selection criteria, sort order and sample size as
+	 * {@link #getQueryString()}.
+	 * @return The query to run with {@link UniDataConnection#query(String)}
+	 */
+	public String getSelectString()
+	{
+		StringBuilder query = new StringBuilder();
+		query.append("SELECT " + getFile());
+		appendCriteria(query);
+
+		return query.toString();
+	}
+
+	/**
+	 * Appends the <code>WITH</code>, <code>BY</code> and <code>SAMPLE</code>
+	 * clauses, if any, to a query.
+	 * @param query The query being built
+	 */
+	protected void appendCriteria(StringBuilder query)
+	{
+		Iterator<Condition> conditionIter = getConditions().iterator();
+		boolean first = true;
+		while(conditionIter.hasNext())
+		{
+			if(!first)
+				query.append(isMatchAny() ? " OR" : " AND");
+			query.append(" " + conditionIter.next().getQueryString());
+			first = false;
+		}
+
+		Iterator<String> sortIter = getSortBy().iterator();
+		while(sortIter.hasNext())
+			query.append(" " + sortIter.next());
+
+		if(getSample() > 0)
+			query.append(" SAMPLE " + getSample());
+	}
+
 	/**
 	 * Gets the current working file.
 	 * @return The working file
@@ -193,6 +247,181 @@ public class FieldDefinition
 		this.selectOnly = selectOnly;
 	}
 
+	/**
+	 * Returns the selection criteria used to filter rows on the server.
+	 * @return A List of {@link Condition}s
+	 */
+	public List<Condition> getConditions()
+	{
+		return conditions;
+	}
+
+	/**
+	 * Sets the selection criteria used to filter rows on the server.
+	 * @param conditions A List of {@link Condition}s
+	 */
+	public void setConditions(List<Condition> conditions)
+	{
+		this.conditions = conditions;
+	}
+
+	/**
+	 * Adds a single {@link Condition} to the selection criteria.
+	 * @param condition The Condition to add
+	 */
+	public void addCondition(Condition condition)
+	{
+		this.conditions.add(condition);
+	}
+
+	/**
+	 * Determines whether a row must match any of the conditions
+	 * (joined with <code>OR</code>) rather than all of them
+	 * (joined with <code>AND</code>, the default).
+	 * @return True if any condition may match, false if all must match
+	 */
+	public boolean isMatchAny()
+	{
+		return matchAny;
+	}
+
+	/**
+	 * Sets whether a row must match any of the conditions
+	 * (joined with <code>OR</code>) rather than all of them
+	 * (joined with <code>AND</code>, the default).
+	 * @param matchAny True if any condition may match, false if all must match
+	 */
+	public void setMatchAny(boolean matchAny)
+	{
+		this.matchAny = matchAny;
+	}
+
+	/**
+	 * Returns the sort clauses (eg <code>BY LAST.NAME</code>) in the order
+	 * they will be applied.
+	 * @return A List of sort clauses
+	 */
+	public List<String> getSortBy()
+	{
+		return sortBy;
+	}
+
+	/**
+	 * Sorts the results by a field in ascending order (<code>BY</code>).
+	 * Sorts are applied in the order they are added.
+	 * @param fieldName The name of the field to sort by
+	 */
+	public void addSortBy(String fieldName)
+	{
+		this.sortBy.add("BY " + fieldName);
+	}
+
+	/**
+	 * Sorts the results by a field in descending order (<code>BY.DSND</code>).
+	 * Sorts are applied in the order they are added.
+	 * @param fieldName The name of the field to sort by
+	 */
+	public void addSortByDescending(String fieldName)
+	{
+		this.sortBy.add("BY.DSND " + fieldName);
+	}
+
+	/**
+	 * Removes all sort clauses.
+	 */
+	public void clearSortBy()
+	{
+		this.sortBy.clear();
+	}
+
+	/**
+	 * Gets the maximum number of rows to return (<code>SAMPLE</code>).
+	 * @return The maximum number of rows, or 0 for no limit
+	 */
+	public int getSample()
+	{
+		return sample;
+	}
+
+	/**
+	 * Sets the maximum number of rows to return (<code>SAMPLE</code>).
+	 * @param sample The maximum number of rows, or 0 for no limit
+	 */
+	public void setSample(int sample)
+	{
+		this.sample = sample;
+	}
+
+	/**
+	 * Gets the fixed output width used for each row (the <code>FMT</code>
+	 * clause of the LIST command).
+	 * @return The output width in characters
+	 * @see #getEffectiveFormatWidth()
+	 */
+	public int getFormatWidth()
+	{
+		return formatWidth;
+	}
+
+	/**
+	 * Sets the fixed output width used for each row (the <code>FMT</code>
+	 * clause of the LIST command). The UniData data source pads every row
+	 * out to this width and wraps rows that are longer, so it should be
+	 * as small as possible while still fitting the widest row.
+	 * @param formatWidth The output width in characters
+	 */
+	public void setFormatWidth(int formatWidth)
+	{
+		this.formatWidth = formatWidth;
+	}
+
+	/**
+	 * Determines whether the output width is sized to the projection.
+	 * @return True if adaptive width is enabled, false otherwise
+	 * @see #setAdaptiveWidth(boolean)
+	 */
+	public boolean isAdaptiveWidth()
+	{
+		return adaptiveWidth;
+	}
+
+	/**
+	 * Sets whether the output width is sized to the projection. When enabled
+	 * and every {@link Field} has a width set (see {@link Field#setWidth(int)}),
+	 * the <code>FMT</code> width is the sum of the field widths and separators
+	 * instead of {@link #getFormatWidth()}, which cuts the padding sent for
+	 * narrow projections. If any field has no width, the fixed width is used.
+	 * @param adaptiveWidth True to enable adaptive width, false to disable
+	 */
+	public void setAdaptiveWidth(boolean adaptiveWidth)
+	{
+		this.adaptiveWidth = adaptiveWidth;
+	}
+
+	/**
+	 * Calculates the output width actually used in the <code>FMT</code> clause
+	 * of {@link #getQueryString()}.
+	 * @return The output width in characters
+	 * @see #setAdaptiveWidth(boolean)
+	 */
+	public int getEffectiveFormatWidth()
+	{
+		if(!isAdaptiveWidth() || getFields().isEmpty())
+			return getFormatWidth();
+
+		int width = getRowSeparator().length();
+		Iterator<Field> it = getFields().iterator();
+		while(it.hasNext())
+		{
+			Field field = it.next();
+			if(field.getWidth() <= 0)
+				return getFormatWidth();
+			width += field.getWidth() + getFieldSeparator().length();
+		}
+
+		return width;
+	}
+
 	/**
 	 * Gets the field separator string
 	 * @return The field separator string
@@ -0,0 +1,143 @@
+package edu.fresno.uniobjects.data;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.fresno.uniobjects.UniDataConnection;
+
+/**
+ * A SelectList is a client-side copy of the record IDs in a UniData select
+ * list, as returned by {@link UniDataConnection#select(FieldDefinition)}
+ * or {@link UniDataConnection#getList(String)}. Unlike the server's active
+ * select list, a SelectList is not consumed when it is used; it can be
+ * reactivated with {@link UniDataConnection#activate(SelectList)} as many
+ * times as needed, on any connection. SelectLists are immutable, so they
+ * may be shared between threads.
+ */
+public class SelectList
+{
+	protected String file;
+	protected List<String> ids;
+	protected long created = System.currentTimeMillis();
+
+	/**
+	 * Construct a SelectList from a List of record IDs.
+	 * @param file The file the IDs belong to, or null if unknown
+	 * @param ids The record IDs, in order
+	 */
+	public SelectList(String file, List<String> ids)
+	{
+		this.file = file;
+		this.ids = Collections.unmodifiableList(new ArrayList<String>(ids));
+	}
+
+	/**
+	 * Gets the file the IDs belong to.
+	 * @return The file name, or null if unknown
+	 */
+	public String getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Gets when the list was created, eg to tell how old a cached list is.
+	 * @return The creation time, from <code>System.currentTimeMillis()</code>
+	 */
+	public long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * Returns the record IDs in the list.
+	 * @return An unmodifiable List of record IDs
+	 */
+	public List<String> getIds()
+	{
+		return ids;
+	}
+
+	/**
+	 * Returns the number of record IDs in the list.
+	 * @return The number of record IDs
+	 */
+	public int count()
+	{
+		return ids.size();
+	}
+
+	/**
+	 * Determines if the list contains no record IDs.
+	 * @return True if empty, false otherwise
+	 */
+	public boolean isEmpty()
+	{
+		return ids.isEmpty();
+	}
+
+	/**
+	 * Creates a new SelectList containing the IDs found in both this list
+	 * and <code>other</code>, in the order they appear in this list.
+	 * @param other The list to intersect with
+	 * @return The intersection of the two lists
+	 */
+	public SelectList intersect(SelectList other)
+	{
+		Set<String> otherIds = new HashSet<String>(other.getIds());
+		List<String> result = new ArrayList<String>();
+		Iterator<String> it = ids.iterator();
+		while(it.hasNext())
+		{
+			String id = it.next();
+			if(otherIds.contains(id))
+				result.add(id);
+		}
+
+		return new SelectList(file, result);
+	}
+
+	/**
+	 * Creates a new SelectList containing the IDs found in either this list
+	 * or <code>other</code>, without duplicates. IDs from this list come first.
+	 * @param other The list to union with
+	 * @return The union of the two lists
+	 */
+	public SelectList union(SelectList other)
+	{
+		Set<String> result = new LinkedHashSet<String>(ids);
+		result.addAll(other.getIds());
+
+		return new SelectList(file, new ArrayList<String>(result));
+	}
+
+	/**
+	 * Splits the list into consecutive batches of at most
+	 * <code>batchSize</code> IDs each, eg to spread work across sessions.
+	 * @param batchSize The maximum number of IDs per batch
+	 * @return A List of SelectLists, in order
+	 * @throws IllegalArgumentException If batchSize is less than 1
+	 */
+	public List<SelectList> split(int batchSize)
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+
+		List<SelectList> batches = new ArrayList<SelectList>();
+		for(int i = 0; i < ids.size(); i += batchSize)
+		{
+			int end = Math.min(i + batchSize, ids.size());
+			batches.add(new SelectList(file, ids.subList(i, end)));
+		}
+
+		return batches;
+	}
+}
@@ -0,0 +1,144 @@
+package edu.fresno.uniobjects.data;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.fresno.uniobjects.SessionPool;
+import edu.fresno.uniobjects.UniDataConnection;
+
+/**
+ * A Subroutine describes a call to a cataloged subroutine and holds its
+ * arguments. Arguments are set before the call with {@link #setArg(int, String)};
+ * after {@link UniDataConnection#call(Subroutine)} or
+ * {@link SessionPool#call(Subroutine)} returns, the same argument slots
+ * hold the values passed back by the subroutine. A Subroutine can be reused
+ * for any number of calls, but should only be used by one thread at a time.
+ */
+public class Subroutine
+{
+	protected String name;
+	protected String[] args;
+
+	/**
+	 * Create a Subroutine, specifying its cataloged name and the number of
+	 * arguments it takes. All arguments start out empty.
+	 * @param name The cataloged name of the subroutine
+	 * @param numArgs The number of arguments the subroutine takes
+	 */
+	public Subroutine(String name, int numArgs)
+	{
+		this.name = name;
+		this.args = new String[numArgs];
+		resetArgs();
+	}
+
+	/**
+	 * Create a Subroutine, specifying its cataloged name and initial
+	 * values for all of its arguments.
+	 * @param name The cataloged name of the subroutine
+	 * @param args The initial argument values
+	 */
+	public Subroutine(String name, String... args)
+	{
+		this(name, args.length);
+		for(int i = 0; i < args.length; i++)
+			setArg(i, args[i]);
+	}
+
+	/**
+	 * Sets every argument back to an empty string, eg before reusing the
+	 * Subroutine for another call.
+	 */
+	public void resetArgs()
+	{
+		Arrays.fill(this.args, "");
+	}
+
+	/**
+	 * Gets the cataloged name of the subroutine.
+	 * @return The subroutine name
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Gets the number of arguments the subroutine takes.
+	 * @return The number of arguments
+	 */
+	public int getNumArgs()
+	{
+		return args.length;
+	}
+
+	/**
+	 * Gets an argument. After a call, this is the value passed back by
+	 * the subroutine.
+	 * @param index The zero-based argument index
+	 * @return The argument value
+	 */
+	public String getArg(int index)
+	{
+		return args[index];
+	}
+
+	/**
+	 * Sets an argument to pass to the subroutine.
+	 * @param index The zero-based argument index
+	 * @param value The argument value; null is passed as an empty string
+	 */
+	public void setArg(int index, String value)
+	{
+		args[index] = value == null ? "" : value;
+	}
+
+	/**
+	 * Splits a multivalued argument on {@link UniDataConnection#VALUE_MARK}.
+	 * @param index The zero-based argument index
+	 * @return The List of values, empty if the argument is empty
+	 */
+	public List<String> getValues(int index)
+	{
+		return split(getArg(index), UniDataConnection.VALUE_MARK);
+	}
+
+	/**
+	 * Splits a dynamic array argument into its attributes on
+	 * {@link UniDataConnection#FIELD_MARK}.
+	 * @param index The zero-based argument index
+	 * @return The List of attributes, empty if the argument is empty
+	 */
+	public List<String> getAttributes(int index)
+	{
+		return split(getArg(index), UniDataConnection.FIELD_MARK);
+	}
+
+	/**
+	 * Splits a string on a mark character, keeping empty values.
+	 * @param data The string to split
+	 * @param mark The mark to split on
+	 * @return The List of values, empty if <code>data</code> is empty
+	 */
+	protected static List<String> split(String data, String mark)
+	{
+		List<String> values = new ArrayList<String>();
+		if(data == null || data.isEmpty())
+			return values;
+
+		int start = 0;
+		int end;
+		while((end = data.indexOf(mark, start)) >= 0)
+		{
+			values.add(data.substring(start, end));
+			start = end + mark.length();
+		}
+		values.add(data.substring(start));
+
+		return values;
+	}
+}
@@ -0,0 +1,88 @@
+package edu.fresno.uniobjects.data;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import edu.fresno.uniobjects.BatchWriter;
+
+/**
+ * A WriteFailure describes a record that could not be written by a
+ * {@link BatchWriter}:
+ * <ul>
+ * <li>The ID of the record</li>
+ * <li>The name of the field that failed, if the failure was specific to one
+ * field</li>
+ * <li>A message describing the failure, and the exception that caused it,
+ * if any</li>
+ * </ul>
+ */
+public class WriteFailure
+{
+	protected String recordId;
+	protected String fieldName;
+	protected String message;
+	protected Exception cause;
+
+	/**
+	 * Create a WriteFailure.
+	 * @param recordId The ID of the record that failed
+	 * @param fieldName The name of the field that failed, or null for the whole record
+	 * @param message A message describing the failure
+	 * @param cause The exception that caused the failure, or null
+	 */
+	public WriteFailure(String recordId, String fieldName, String message, Exception cause)
+	{
+		this.recordId = recordId;
+		this.fieldName = fieldName;
+		this.message = message;
+		this.cause = cause;
+	}
+
+	/**
+	 * Gets the ID of the record that failed.
+	 * @return The record ID
+	 */
+	public String getRecordId()
+	{
+		return recordId;
+	}
+
+	/**
+	 * Gets the name of the field that failed.
+	 * @return The field name, or null if the whole record failed
+	 */
+	public String getFieldName()
+	{
+		return fieldName;
+	}
+
+	/**
+	 * Gets a message describing the failure.
+	 * @return The failure message
+	 */
+	public String getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * Gets the exception that caused the failure.
+	 * @return The exception, or null if there was none
+	 */
+	public Exception getCause()
+	{
+		return cause;
+	}
+
+	/**
+	 * Returns a description of the failure.
+	 * @return The description
+	 */
+	public String toString()
+	{
+		if(fieldName == null)
+			return recordId + ": " + message;
+		else
+			return recordId + " (" + fieldName + "): " + message;
+	}
+}
@@ -0,0 +1,32 @@
+package edu.fresno.uniobjects.exceptions;
+
+/* Copyright (c) 2010, Fresno Pacific University
+   Licensed under the New BSD license; see the LICENSE file for details. */
+
+import edu.fresno.uniobjects.UniDataConnection;
+
+/**
+ * Exception that indicates that a query on a {@link UniDataConnection}
+ * did not complete before its deadline and was abandoned.
+ */
+public class QueryTimeoutException extends Exception
+{
+	private static final long serialVersionUID = -6028493175261430857L;
+
+	/**
+	 * Create a default QueryTimeoutException.
+	 */
+	public QueryTimeoutException()
+	{
+		super();
+	}
+
+	/**
+	 * Create a QueryTimeoutException with a message.
+	 * @param message The message to attach.
+	 */
+	public QueryTimeoutException(String message)
+	{
+		super(message);
+	}
+}